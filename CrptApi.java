@@ -1,302 +1,4569 @@
-import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-/**
- * Класс для работы с API Честного знака с поддержкой ограничения запросов
- */
-public class CrptApi {
-
-    private final HttpClient httpClient;
-    private final ObjectMapper objectMapper;
-    private final RequestLimiter requestLimiter;
-    private final String apiUrl = "https://ismp.crpt.ru/api/v3/lk/documents/create";
-
-    /**
-     * Конструктор API клиента
-     * @param timeUnit единица времени для ограничения запросов
-     * @param requestLimit максимальное количество запросов в указанный промежуток времени
-     */
-    public CrptApi(TimeUnit timeUnit, int requestLimit) {
-        if (requestLimit <= 0) {
-            throw new IllegalArgumentException("requestLimit должен быть положительным числом");
-        }
-
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(30))
-                .build();
-
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-
-        this.requestLimiter = new RequestLimiter(timeUnit, requestLimit);
-    }
-
-    /**
-     * Создание документа для ввода в оборот товара, произведенного в РФ
-     * @param document объект документа
-     * @param signature подпись документа в виде строки
-     * @return результат выполнения запроса
-     */
-    public ApiResponse createDocument(Document document, String signature) {
-        requestLimiter.acquire();
-
-        try {
-            String requestBody = objectMapper.writeValueAsString(document);
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(apiUrl))
-                    .header("Content-Type", "application/json")
-                    .header("Signature", signature)
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .timeout(Duration.ofSeconds(30))
-                    .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-            return new ApiResponse(response.statusCode(), response.body());
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Ошибка сериализации документа", e);
-        } catch (IOException e) {
-            throw new RuntimeException("Ошибка сети при выполнении запроса", e);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Запрос был прерван", e);
-        }
-    }
-
-    /**
-     * Класс для ограничения количества запросов
-     */
-    private static class RequestLimiter {
-        private final long timeWindowMillis;
-        private final int requestLimit;
-        private final ConcurrentLinkedQueue<Long> requestTimestamps;
-        private final ReentrantLock lock;
-
-        public RequestLimiter(TimeUnit timeUnit, int requestLimit) {
-            this.timeWindowMillis = timeUnit.toMillis(1);
-            this.requestLimit = requestLimit;
-            this.requestTimestamps = new ConcurrentLinkedQueue<>();
-            this.lock = new ReentrantLock();
-        }
-
-        public void acquire() {
-            lock.lock();
-            try {
-                cleanExpiredRequests();
-
-                while (requestTimestamps.size() >= requestLimit) {
-                    try {
-                        long oldestTimestamp = requestTimestamps.peek();
-                        long timeToWait = timeWindowMillis - (System.currentTimeMillis() - oldestTimestamp);
-
-                        if (timeToWait > 0) {
-                            Thread.sleep(timeToWait);
-                        }
-
-                        cleanExpiredRequests();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("Ожидание было прервано", e);
-                    }
-                }
-
-                requestTimestamps.offer(System.currentTimeMillis());
-            } finally {
-                lock.unlock();
-            }
-        }
-
-        private void cleanExpiredRequests() {
-            long currentTime = System.currentTimeMillis();
-            long cutoffTime = currentTime - timeWindowMillis;
-
-            while (!requestTimestamps.isEmpty() && requestTimestamps.peek() <= cutoffTime) {
-                requestTimestamps.poll();
-            }
-        }
-    }
-
-    /**
-     * Модель документа для ввода в оборот товара
-     */
-    public static class Document {
-        private Description description;
-        private String docId;
-        private String docStatus;
-        private String docType;
-        private boolean importRequest;
-        private String ownerInn;
-        private String participantInn;
-        private String producerInn;
-        private String productionDate;
-        private String productionType;
-        private Product[] products;
-        private String regDate;
-        private String regNumber;
-
-        // Конструкторы, геттеры и сеттеры
-        public Document() {}
-
-        public Document(Description description, String docId, String docStatus, String docType,
-                        boolean importRequest, String ownerInn, String participantInn,
-                        String producerInn, String productionDate, String productionType,
-                        Product[] products, String regDate, String regNumber) {
-            this.description = description;
-            this.docId = docId;
-            this.docStatus = docStatus;
-            this.docType = docType;
-            this.importRequest = importRequest;
-            this.ownerInn = ownerInn;
-            this.participantInn = participantInn;
-            this.producerInn = producerInn;
-            this.productionDate = productionDate;
-            this.productionType = productionType;
-            this.products = products;
-            this.regDate = regDate;
-            this.regNumber = regNumber;
-        }
-
-        // Геттеры и сеттеры
-        public Description getDescription() { return description; }
-        public void setDescription(Description description) { this.description = description; }
-
-        public String getDocId() { return docId; }
-        public void setDocId(String docId) { this.docId = docId; }
-
-        public String getDocStatus() { return docStatus; }
-        public void setDocStatus(String docStatus) { this.docStatus = docStatus; }
-
-        public String getDocType() { return docType; }
-        public void setDocType(String docType) { this.docType = docType; }
-
-        public boolean isImportRequest() { return importRequest; }
-        public void setImportRequest(boolean importRequest) { this.importRequest = importRequest; }
-
-        public String getOwnerInn() { return ownerInn; }
-        public void setOwnerInn(String ownerInn) { this.ownerInn = ownerInn; }
-
-        public String getParticipantInn() { return participantInn; }
-        public void setParticipantInn(String participantInn) { this.participantInn = participantInn; }
-
-        public String getProducerInn() { return producerInn; }
-        public void setProducerInn(String producerInn) { this.producerInn = producerInn; }
-
-        public String getProductionDate() { return productionDate; }
-        public void setProductionDate(String productionDate) { this.productionDate = productionDate; }public String getProductionType() { return productionType; }
-        public void setProductionType(String productionType) { this.productionType = productionType; }
-
-        public Product[] getProducts() { return products; }
-        public void setProducts(Product[] products) { this.products = products; }
-
-        public String getRegDate() { return regDate; }
-        public void setRegDate(String regDate) { this.regDate = regDate; }
-
-        public String getRegNumber() { return regNumber; }
-        public void setRegNumber(String regNumber) { this.regNumber = regNumber; }
-    }
-
-    /**
-     * Описание документа
-     */
-    public static class Description {
-        private String participantInn;
-
-        public Description() {}
-        public Description(String participantInn) {
-            this.participantInn = participantInn;
-        }
-
-        public String getParticipantInn() { return participantInn; }
-        public void setParticipantInn(String participantInn) { this.participantInn = participantInn; }
-    }
-
-    /**
-     * Информация о продукте
-     */
-    public static class Product {
-        private String certificateDocument;
-        private String certificateDocumentDate;
-        private String certificateDocumentNumber;
-        private String ownerInn;
-        private String producerInn;
-        private String productionDate;
-        private String tnvedCode;
-        private String uitCode;
-        private String uituCode;
-
-        public Product() {}
-
-        public Product(String certificateDocument, String certificateDocumentDate,
-                       String certificateDocumentNumber, String ownerInn, String producerInn,
-                       String productionDate, String tnvedCode, String uitCode, String uituCode) {
-            this.certificateDocument = certificateDocument;
-            this.certificateDocumentDate = certificateDocumentDate;
-            this.certificateDocumentNumber = certificateDocumentNumber;
-            this.ownerInn = ownerInn;
-            this.producerInn = producerInn;
-            this.productionDate = productionDate;
-            this.tnvedCode = tnvedCode;
-            this.uitCode = uitCode;
-            this.uituCode = uituCode;
-        }
-
-        // Геттеры и сеттеры
-        public String getCertificateDocument() { return certificateDocument; }
-        public void setCertificateDocument(String certificateDocument) { this.certificateDocument = certificateDocument; }
-
-        public String getCertificateDocumentDate() { return certificateDocumentDate; }
-        public void setCertificateDocumentDate(String certificateDocumentDate) { this.certificateDocumentDate = certificateDocumentDate; }
-
-        public String getCertificateDocumentNumber() { return certificateDocumentNumber; }
-        public void setCertificateDocumentNumber(String certificateDocumentNumber) { this.certificateDocumentNumber = certificateDocumentNumber; }
-
-        public String getOwnerInn() { return ownerInn; }
-        public void setOwnerInn(String ownerInn) { this.ownerInn = ownerInn; }
-
-        public String getProducerInn() { return producerInn; }
-        public void setProducerInn(String producerInn) { this.producerInn = producerInn; }
-
-        public String getProductionDate() { return productionDate; }
-        public void setProductionDate(String productionDate) { this.productionDate = productionDate; }
-
-        public String getTnvedCode() { return tnvedCode; }
-        public void setTnvedCode(String tnvedCode) { this.tnvedCode = tnvedCode; }
-
-        public String getUitCode() { return uitCode; }
-        public void setUitCode(String uitCode) { this.uitCode = uitCode; }
-
-        public String getUituCode() { return uituCode; }
-        public void setUituCode(String uituCode) { this.uituCode = uituCode; }
-    }
-
-    /**
-     * Результат выполнения API запроса
-     */
-    public static class ApiResponse {
-        private final int statusCode;private final String body;
-
-        public ApiResponse(int statusCode, String body) {
-            this.statusCode = statusCode;
-            this.body = body;
-        }
-
-        public int getStatusCode() { return statusCode; }
-        public String getBody() { return body; }
-
-        public boolean isSuccess() {
-            return statusCode >= 200 && statusCode < 300;
-        }
-    }
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.stream.Stream;
+import javax.net.ssl.SSLContext;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * Класс для работы с API Честного знака с поддержкой ограничения запросов
+ */
+public class CrptApi implements Closeable {
+
+    private static final URI DEFAULT_BASE_URI = URI.create("https://ismp.crpt.ru");
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final HttpResponse.BodyHandler<String> STRING_BODY =
+            InflatingBodySubscriber.decoding(HttpResponse.BodyHandlers.ofString());
+
+    private final Transport transport;
+    private final ObjectWriter documentWriter;
+    private final Executor executor;
+    private final RequestLimiter requestLimiter;
+    private final AdaptiveRateController rateController;
+    private final DocumentCost documentCost;
+    private final ContentEncoding requestCompression;
+    private final int compressionThreshold;
+    private final Endpoint createEndpoint;
+    private final RetryPolicy retryPolicy;
+    private final RetryBudget retryBudget;
+    private final long maxPauseNanos;
+    private final String documentFormat;
+    private final String documentType;
+    private final CircuitBreaker circuitBreaker;
+    private final VegasConcurrencyLimit concurrencyLimit;
+    private final ConcurrentHashMap<String, InFlightCall> inFlight = new ConcurrentHashMap<>();
+    private final HttpResponse.BodyHandler<DocumentResult> resultBody;
+    private final HttpResponse.BodyHandler<DocumentResult> textResultBody;
+    private final boolean retainRawBody;
+
+    /**
+     * Конструктор API клиента
+     * @param timeUnit единица времени для ограничения запросов
+     * @param requestLimit максимальное количество запросов в указанный промежуток времени
+     */
+    public CrptApi(TimeUnit timeUnit, int requestLimit) {
+        this(builder(timeUnit, requestLimit));
+    }
+
+    /**
+     * Конструктор API клиента с выбором стратегии ограничения запросов
+     * @param timeUnit единица времени для ограничения запросов
+     * @param requestLimit максимальное количество запросов в указанный промежуток времени
+     * @param strategy стратегия ограничителя запросов
+     */
+    public CrptApi(TimeUnit timeUnit, int requestLimit, LimiterStrategy strategy) {
+        this(builder(timeUnit, requestLimit).strategy(strategy));
+    }
+
+    private CrptApi(Builder builder) {
+        if (builder.requestLimit <= 0) {
+            throw new IllegalArgumentException("requestLimit должен быть положительным числом");
+        }
+
+        Transport transport = builder.transport != null ? builder.transport : Transport.shared();
+        this.transport = transport;
+        this.resultBody = InflatingBodySubscriber.decoding(DocumentResultSubscriber.handler(
+                transport.objectMapper.getFactory(), builder.retainRawBody, builder.maxErrorBodyBytes));
+        this.textResultBody = InflatingBodySubscriber.decoding(DocumentResultSubscriber.handler(
+                transport.objectMapper.getFactory(), true, builder.maxErrorBodyBytes));
+        this.retainRawBody = builder.retainRawBody;
+        this.createEndpoint = new Endpoint(builder.baseUri, "/api/v3/lk/documents/create",
+                "Content-Type", "application/json",
+                "Accept-Encoding", "gzip, deflate");
+        this.documentWriter = transport.documentWriter;
+        this.executor = transport.executor;
+
+        this.requestLimiter = createLimiter(builder);
+        this.maxPauseNanos = builder.maxPause != null ? builder.maxPause.toNanos() : 3 * builder.timeUnit.toNanos(1);
+        this.rateController = builder.minRequestLimit > 0
+                ? new AdaptiveRateController(requestLimiter, builder.timeUnit, builder.minRequestLimit, builder.requestLimit,
+                        maxPauseNanos)
+                : null;
+        this.documentCost = builder.documentCost;
+        this.requestCompression = builder.requestCompression;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.retryPolicy = builder.retryPolicy;
+        this.retryBudget = retryPolicy != null ? new RetryBudget(retryPolicy.budgetPercent) : null;
+        this.documentFormat = builder.documentFormat;
+        this.documentType = builder.documentType;
+        this.circuitBreaker = builder.circuitBreaker;
+        this.concurrencyLimit = builder.maxConcurrency > 0
+                ? new VegasConcurrencyLimit(builder.minConcurrency, builder.maxConcurrency)
+                : null;
+    }
+
+    private static RequestLimiter createLimiter(Builder builder) {
+        RequestLimiter limiter = builder.sharedStateFile != null
+                ? new SharedFileLimiter(builder.sharedStateFile, builder.timeUnit, builder.requestLimit, builder.timeSource)
+                : RequestLimiter.create(builder.strategy, builder.timeUnit, builder.requestLimit, builder.timeSource);
+        if (builder.coordinator != null) {
+            limiter = new DistributedLimiter(limiter, builder.coordinator, builder.nodeId, builder.expectedNodes,
+                    builder.timeUnit);
+        }
+        return limiter;
+    }
+
+    /**
+     * Построитель API клиента с дополнительными режимами работы
+     * @param timeUnit единица времени для ограничения запросов
+     * @param requestLimit максимальное количество запросов в указанный промежуток времени
+     */
+    public static Builder builder(TimeUnit timeUnit, int requestLimit) {
+        return new Builder(timeUnit, requestLimit);
+    }
+
+    /**
+     * Текущее эффективное количество запросов, разрешённых в промежуток времени.
+     * В адаптивном режиме меняется по ответам сервера, иначе равно requestLimit.
+     */
+    public int getEffectiveRequestLimit() {
+        return requestLimiter.getLimit();
+    }
+
+    /**
+     * Текущий адаптивный лимит одновременных запросов или 0, если он не включён
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit != null ? concurrencyLimit.getLimit() : 0;
+    }
+
+    /**
+     * Создание документа для ввода в оборот товара, произведенного в РФ
+     * @param document объект документа
+     * @param signature подпись документа в виде строки
+     * @return результат выполнения запроса
+     */
+    public ApiResponse createDocument(Document document, String signature) {
+        // Ожидание через CompletableFuture и LockSupport: виртуальный поток при этом снимается с носителя
+        return join(createDocumentAsync(document, signature));
+    }
+
+    /**
+     * Асинхронное создание документа для ввода в оборот товара, произведенного в РФ.
+     * Ожидание разрешения на запрос не занимает поток: результат завершается планировщиком,
+     * сериализация выполняется вне вызывающего потока, отправка - через HttpClient.sendAsync.
+     * @param document объект документа
+     * @param signature подпись документа в виде строки
+     * @return будущий результат выполнения запроса
+     */
+    public CompletableFuture<ApiResponse> createDocumentAsync(Document document, String signature) {
+        return call(document, signature, true, call -> STRING_BODY, CrptApi::toApiResponse, this::toApiResponse);
+    }
+
+    /**
+     * Создание документа с разбором ответа в типизированный результат
+     * @param document объект документа
+     * @param signature подпись документа в виде строки
+     * @return идентификатор созданного документа или код и текст ошибки
+     */
+    public DocumentResult createDocumentResult(Document document, String signature) {
+        return join(createDocumentResultAsync(document, signature));
+    }
+
+    /**
+     * Асинхронное создание документа с разбором ответа в типизированный результат.
+     * Ответ разбирается неблокирующим парсером прямо из блоков байт по мере поступления,
+     * без промежуточной строки; исходное тело сохраняется только по {@link Builder#retainRawBody}.
+     * При совпадении docId с выполняющимся вызовом ответ берётся из общей отправки.
+     * Если её начал {@link #createDocumentAsync}, результат разбирается из уже полученной строки.
+     * @param document объект документа
+     * @param signature подпись документа в виде строки
+     * @return будущий результат выполнения запроса
+     */
+    public CompletableFuture<DocumentResult> createDocumentResultAsync(Document document, String signature) {
+        return call(document, signature, false, this::resultBody, HttpResponse::body, this::toDocumentResult);
+    }
+
+    private static ApiResponse toApiResponse(HttpResponse<String> response) {
+        return new ApiResponse(response.statusCode(), response.body());
+    }
+
+    /**
+     * Отправка документа. Одновременные вызовы с одним docId разделяют одну отправку вместо
+     * дублирующих созданий: тело разбирается обработчиком первого вызова, а вызов другого типа
+     * получает свой результат преобразованием convert
+     * @param text результат строится из текста ответа
+     */
+    private <T, R> CompletableFuture<R> call(Document document, String signature, boolean text,
+                                             Function<InFlightCall, HttpResponse.BodyHandler<T>> handler,
+                                             Function<HttpResponse<T>, R> result, Function<Object, R> convert) {
+        int permits = documentCost.permits(document);
+        String docId = document.getDocId();
+        if (retryPolicy == null || docId == null) {
+            CompletableFuture<HttpResponse<T>> exchange = retryPolicy == null
+                    ? acquireAndSend(document, signature, permits, handler.apply(null))
+                    : sendWithRetries(document, signature, permits, handler.apply(null));
+            return cancelling(exchange.thenApply(result), exchange);
+        }
+        InFlightCall call = new InFlightCall();
+        InFlightCall existing = inFlight.putIfAbsent(docId, call);
+        if (existing != null) {
+            if (text) {
+                existing.textWanted = true;
+            }
+            CompletableFuture<Object> shared = existing.result.copy();
+            return cancelling(shared.thenApply(convert), shared);
+        }
+        sendWithRetries(document, signature, permits, handler.apply(call)).thenApply(result)
+                .whenComplete((value, error) -> {
+                    inFlight.remove(docId, call);
+                    if (error != null) {
+                        call.result.completeExceptionally(error);
+                    } else {
+                        call.result.complete(value);
+                    }
+                });
+        CompletableFuture<Object> shared = call.result.copy();
+        return cancelling(shared.thenApply(convert), shared);
+    }
+
+    /**
+     * Обработчик разбора в DocumentResult. Для общей отправки тело сохраняется, если к ней
+     * до получения заголовков ответа присоединился вызов, которому нужен текст ответа
+     */
+    private HttpResponse.BodyHandler<DocumentResult> resultBody(InFlightCall call) {
+        if (call == null) {
+            return resultBody;
+        }
+        return responseInfo -> (call.textWanted ? textResultBody : resultBody).apply(responseInfo);
+    }
+
+    private ApiResponse toApiResponse(Object shared) {
+        if (shared instanceof ApiResponse) {
+            return (ApiResponse) shared;
+        }
+        DocumentResult result = (DocumentResult) shared;
+        return new ApiResponse(result.getStatusCode(),
+                result.getRawBody() != null ? result.getRawBody() : renderBody(result));
+    }
+
+    private DocumentResult toDocumentResult(Object shared) {
+        if (shared instanceof ApiResponse) {
+            ApiResponse response = (ApiResponse) shared;
+            return replay(response.getStatusCode(), response.getBody(), resultBody);
+        }
+        DocumentResult result = (DocumentResult) shared;
+        if (retainRawBody || result.getRawBody() == null) {
+            return result;
+        }
+        return new DocumentResult(result.getStatusCode(), result.getDocumentId(), result.getErrorCode(),
+                result.getErrorMessage(), null);
+    }
+
+    /**
+     * Тело ответа по разобранным полям - для вызова, присоединившегося к общей отправке
+     * уже после получения заголовков, когда исходное тело не сохранялось
+     */
+    private String renderBody(DocumentResult result) {
+        ObjectNode body = transport.objectMapper.createObjectNode();
+        if (result.isSuccess()) {
+            body.put("value", result.getDocumentId());
+        } else {
+            if (result.getErrorCode() != null) {
+                body.put("code", result.getErrorCode());
+            }
+            if (result.getErrorMessage() != null) {
+                body.put("error_message", result.getErrorMessage());
+            }
+        }
+        return body.toString();
+    }
+
+    /**
+     * Разбор уже полученного текста ответа обработчиком так же, как при чтении из сети
+     */
+    private static <T> T replay(int statusCode, String body, HttpResponse.BodyHandler<T> handler) {
+        HttpResponse.BodySubscriber<T> subscriber = handler.apply(new HttpResponse.ResponseInfo() {
+            @Override
+            public int statusCode() {
+                return statusCode;
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return HttpHeaders.of(Map.of(), (name, value) -> true);
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        });
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        if (body != null && !body.isEmpty()) {
+            subscriber.onNext(List.of(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8))));
+        }
+        subscriber.onComplete();
+        return subscriber.getBody().toCompletableFuture().join();
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> acquireAndSend(Document document, String signature, int permits,
+                                                                  HttpResponse.BodyHandler<T> handler) {
+        // Проверка до ограничителя: при разомкнутой цепи вызов не расходует квоту
+        if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+            return CompletableFuture.failedFuture(circuitOpen());
+        }
+        CompletableFuture<Void> permit = requestLimiter.acquireAsync(permits);
+        // Разрешение выключателя возвращает тот, кто первым займёт флаг: отправка или отмена
+        AtomicBoolean claimed = new AtomicBoolean();
+        CompletableFuture<HttpResponse<T>> exchange = executor != null
+                ? permit.thenComposeAsync(ignored -> claimAndSend(claimed, document, signature, handler), executor)
+                : permit.thenComposeAsync(ignored -> claimAndSend(claimed, document, signature, handler));
+        exchange.whenComplete((response, error) -> {
+            if (exchange.isCancelled() && claimed.compareAndSet(false, true)) {
+                // Отмена до отправки снимает ожидание с колеса таймеров и возвращает разрешения ограничителю
+                permit.cancel(false);
+                releaseCircuit();
+            }
+        });
+        return exchange;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> claimAndSend(AtomicBoolean claimed, Document document,
+                                                                String signature, HttpResponse.BodyHandler<T> handler) {
+        if (!claimed.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new CancellationException());
+        }
+        return sendAsync(document, signature, handler);
+    }
+
+    /**
+     * Передача отмены результата стадии, от которой он зависит
+     */
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<T> result, CompletableFuture<?> stage) {
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                stage.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Отправка с повторами по политике. Каждый повтор заново получает разрешение
+     * ограничителя, поэтому повторы не превышают лимит, а задержка повтора не меньше Retry-After.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendWithRetries(Document document, String signature, int permits,
+                                                                   HttpResponse.BodyHandler<T> handler) {
+        retryBudget.deposit();
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        attempt(result, document, signature, permits, handler, 1, retryPolicy.baseDelayNanos);
+        return result;
+    }
+
+    private <T> void attempt(CompletableFuture<HttpResponse<T>> result, Document document, String signature,
+                             int permits, HttpResponse.BodyHandler<T> handler, int attempt, long previousDelay) {
+        CompletableFuture<HttpResponse<T>> exchange = acquireAndSend(document, signature, permits, handler);
+        cancelling(result, exchange);
+        exchange.whenComplete((response, error) -> {
+            if (result.isDone()) {
+                return;
+            }
+            Throwable cause = error != null ? unwrap(error) : null;
+            if (attempt < retryPolicy.maxAttempts
+                    && retryPolicy.isRetryable(response, cause)
+                    && retryBudget.tryWithdraw()) {
+                long delay = retryDelay(response, previousDelay);
+                CompletableFuture<Void> pause = requestLimiter.delayAsync(delay);
+                cancelling(result, pause);
+                pause.thenRun(() -> attempt(result, document, signature, permits, handler, attempt + 1, delay));
+            } else if (cause != null) {
+                result.completeExceptionally(cause);
+            } else {
+                result.complete(response);
+            }
+        });
+    }
+
+    /**
+     * Задержка повтора: джиттер политики, но не меньше Retry-After ответа (не больше maxPause)
+     */
+    private long retryDelay(HttpResponse<?> response, long previousDelay) {
+        long delay = retryPolicy.nextDelayNanos(previousDelay);
+        if (response == null) {
+            return delay;
+        }
+        return response.headers().firstValue("Retry-After")
+                .map(AdaptiveRateController::parseRetryAfter)
+                .map(retryAfter -> Math.max(delay, Math.min(retryAfter, maxPauseNanos)))
+                .orElse(delay);
+    }
+
+    /**
+     * Предварительная установка соединений с сервером API, чтобы первые запросы
+     * не тратили время на TCP, TLS и согласование протокола. Запросы прогрева
+     * не проходят через ограничитель.
+     * @param connections количество одновременных запросов прогрева
+     * @return количество успешно выполненных запросов прогрева
+     */
+    public int warmUp(int connections) {
+        return join(transport.warmUp(createEndpoint.uri, connections));
+    }
+
+    /**
+     * Освобождение ресурсов клиента: в распределённом режиме прекращается продление аренды
+     * и доля лимита возвращается координатору. Транспорт не закрывается, так как может быть общим.
+     */
+    @Override
+    public void close() {
+        requestLimiter.close();
+    }
+
+    /**
+     * Создание документа, если разрешение на запрос доступно немедленно
+     * @param document объект документа
+     * @param signature подпись документа в виде строки
+     * @return результат выполнения запроса или пустое значение, если лимит запросов исчерпан
+     * или автоматический выключатель разомкнут
+     */
+    public Optional<ApiResponse> tryCreateDocument(Document document, String signature) {
+        if (!acquireCircuit()) {
+            return Optional.empty();
+        }
+        if (!requestLimiter.tryAcquire(documentCost.permits(document), 0, TimeUnit.NANOSECONDS)) {
+            releaseCircuit();
+            return Optional.empty();
+        }
+        return Optional.of(join(sendAsync(document, signature, STRING_BODY).thenApply(CrptApi::toApiResponse)));
+    }
+
+    /**
+     * Создание документа с ограничением времени ожидания разрешения на запрос
+     * @param document объект документа
+     * @param signature подпись документа в виде строки
+     * @param maxWait максимальное время ожидания разрешения
+     * @return результат выполнения запроса или пустое значение, если разрешение не получено за maxWait
+     * или автоматический выключатель разомкнут
+     */
+    public Optional<ApiResponse> createDocument(Document document, String signature, Duration maxWait) {
+        if (!acquireCircuit()) {
+            return Optional.empty();
+        }
+        if (!requestLimiter.tryAcquire(documentCost.permits(document), maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+            releaseCircuit();
+            return Optional.empty();
+        }
+        return Optional.of(join(sendAsync(document, signature, STRING_BODY).thenApply(CrptApi::toApiResponse)));
+    }
+
+    private boolean acquireCircuit() {
+        return circuitBreaker == null || circuitBreaker.tryAcquirePermission();
+    }
+
+    private void releaseCircuit() {
+        if (circuitBreaker != null) {
+            circuitBreaker.release();
+        }
+    }
+
+    private static RuntimeException circuitOpen() {
+        return new RuntimeException("Сервис недоступен: автоматический выключатель разомкнут");
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(Document document, String signature,
+                                                             HttpResponse.BodyHandler<T> handler) {
+        HttpRequest.Builder builder = createEndpoint.newRequest().timeout(REQUEST_TIMEOUT);
+        Envelope envelope = null;
+        if (documentFormat != null) {
+            envelope = new Envelope(documentFormat, documentType, signature);
+        } else {
+            builder.header("Signature", signature);
+        }
+        HttpRequest.BodyPublisher body;
+        try {
+            body = bodyPublisher(document, envelope, builder);
+            builder.POST(body);
+        } catch (IOException e) {
+            releaseCircuit();
+            return CompletableFuture.failedFuture(new RuntimeException("Ошибка сериализации документа", e));
+        }
+        HttpRequest request = builder.build();
+
+        // Время вызова для выключателя отсчитывается от фактического начала обмена,
+        // а не от постановки в локальные очереди одновременных запросов
+        AtomicLong start = new AtomicLong(System.nanoTime());
+        Supplier<CompletableFuture<HttpResponse<T>>> send =
+                () -> transport.send(request, handler, () -> start.set(System.nanoTime()));
+        CompletableFuture<HttpResponse<T>> exchange = concurrencyLimit != null
+                ? concurrencyLimit.submit(send, start::get)
+                : send.get();
+        return exchange
+                .handle((response, error) -> {
+                    if (body instanceof DocumentBodyPublisher) {
+                        ((DocumentBodyPublisher) body).discard();
+                    }
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        for (Throwable t = cause; t != null; t = t.getCause()) {
+                            if (t instanceof JsonProcessingException) {
+                                releaseCircuit();
+                                throw new RuntimeException("Ошибка сериализации документа", t);
+                            }
+                        }
+                        if (circuitBreaker != null) {
+                            circuitBreaker.onResult(System.nanoTime() - start.get(), true);
+                        }
+                        throw new RuntimeException("Ошибка сети при выполнении запроса", cause);
+                    }
+                    if (circuitBreaker != null) {
+                        circuitBreaker.onResult(System.nanoTime() - start.get(), response.statusCode() >= 500);
+                    }
+                    if (rateController != null) {
+                        rateController.onResponse(response);
+                    }
+                    return response;
+                });
+    }
+
+    /**
+     * Выбор тела запроса. При включённом сжатии документ сначала сериализуется
+     * до порога: небольшой документ отправляется уже полученными байтами без сжатия,
+     * а крупный - потоково со сжатием в публикаторе и заголовком Content-Encoding.
+     * Сериализация крупного документа продолжается тем же писателем: байты до порога
+     * сжимаются первыми, и источник товаров не открывается повторно.
+     */
+    private HttpRequest.BodyPublisher bodyPublisher(Document document, Envelope envelope, HttpRequest.Builder builder)
+            throws IOException {
+        if (requestCompression == null) {
+            return new DocumentBodyPublisher(documentWriter, document, envelope, null);
+        }
+        ByteArrayOutputStream probe = new ByteArrayOutputStream();
+        SwitchableOutputStream out = new SwitchableOutputStream(probe);
+        DocumentWriter writer = new DocumentWriter(documentWriter, document, envelope, out);
+        try {
+            while (writer.writeNext()) {
+                if (probe.size() + writer.bufferedBytes() >= compressionThreshold) {
+                    builder.header("Content-Encoding", requestCompression.token);
+                    return new DocumentBodyPublisher(documentWriter, document, envelope, requestCompression,
+                            new ProbedDocument(writer, out, probe));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.close();
+            throw e;
+        }
+        writer.close();
+        return HttpRequest.BodyPublishers.ofByteArray(probe.toByteArray());
+    }
+
+    /**
+     * Ожидание результата асинхронной операции с пробросом исходного исключения.
+     * При прерывании потока операция отменяется, а флаг прерывания восстанавливается.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Запрос был прерван", e);
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Построитель API клиента
+     */
+    public static class Builder {
+        private final TimeUnit timeUnit;
+        private final int requestLimit;
+        private LimiterStrategy strategy = LimiterStrategy.SLIDING_LOG;
+        private int minRequestLimit;
+        private Duration maxPause;
+        private Path sharedStateFile;
+        private QuotaCoordinator coordinator;
+        private String nodeId;
+        private int expectedNodes;
+        private DocumentCost documentCost = DocumentCost.perDocument();
+        private TimeSource timeSource = TimeSource.system();
+        private ContentEncoding requestCompression;
+        private int compressionThreshold;
+        private Transport transport;
+        private URI baseUri = DEFAULT_BASE_URI;
+        private RetryPolicy retryPolicy;
+        private CircuitBreaker circuitBreaker;
+        private int minConcurrency;
+        private int maxConcurrency;
+        private boolean retainRawBody;
+        private int maxErrorBodyBytes = 8192;
+        private String documentFormat;
+        private String documentType;
+
+        private Builder(TimeUnit timeUnit, int requestLimit) {
+            this.timeUnit = timeUnit;
+            this.requestLimit = requestLimit;
+        }
+
+        /**
+         * Стратегия ограничителя запросов
+         */
+        public Builder strategy(LimiterStrategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * Адаптивный режим: лимит подстраивается по ответам сервера (AIMD)
+         * в пределах от minRequestLimit до requestLimit
+         * @param minRequestLimit нижняя граница количества запросов в промежуток времени
+         */
+        public Builder adaptive(int minRequestLimit) {
+            if (minRequestLimit <= 0 || minRequestLimit > requestLimit) {
+                throw new IllegalArgumentException("minRequestLimit должен быть в пределах от 1 до requestLimit");
+            }
+            this.minRequestLimit = minRequestLimit;
+            return this;
+        }
+
+        /**
+         * Наибольшая пауза по Retry-After и X-RateLimit-Reset - для повторов и для выдачи
+         * разрешений в адаптивном режиме; по умолчанию три промежутка времени ограничителя
+         */
+        public Builder maxPause(Duration maxPause) {
+            if (maxPause.isNegative()) {
+                throw new IllegalArgumentException("maxPause не может быть отрицательным");
+            }
+            this.maxPause = maxPause;
+            return this;
+        }
+
+        /**
+         * Общий для всех процессов хоста лимит: состояние ограничителя (GCRA) хранится
+         * в отображаемом в память файле, и процессы с одним файлом делят один лимит.
+         * Стратегия в этом режиме не учитывается.
+         * @param stateFile файл состояния, создаётся при отсутствии
+         */
+        public Builder sharedStateFile(Path stateFile) {
+            this.sharedStateFile = stateFile;
+            return this;
+        }
+
+        /**
+         * Распределённый режим: requestLimit - глобальный лимит учётной записи, а экземпляр
+         * получает от координатора аренду доли этого лимита и расходует её локально.
+         * Пока первая аренда не получена (например, координатор недоступен при запуске),
+         * узлу разрешён один запрос в промежуток времени
+         * @param coordinator координатор квот
+         * @param nodeId идентификатор узла без пробельных символов
+         */
+        public Builder distributed(QuotaCoordinator coordinator, String nodeId) {
+            return distributed(coordinator, nodeId, 0);
+        }
+
+        /**
+         * Распределённый режим с ожидаемым количеством узлов: пока первая аренда не получена,
+         * узел расходует requestLimit / expectedNodes запросов в промежуток времени
+         * @param coordinator координатор квот
+         * @param nodeId идентификатор узла без пробельных символов
+         * @param expectedNodes ожидаемое количество узлов или 0 для доли в один запрос
+         */
+        public Builder distributed(QuotaCoordinator coordinator, String nodeId, int expectedNodes) {
+            if (nodeId == null || nodeId.isEmpty() || nodeId.chars().anyMatch(Character::isWhitespace)) {
+                throw new IllegalArgumentException("nodeId должен быть непустым и без пробельных символов");
+            }
+            if (expectedNodes < 0) {
+                throw new IllegalArgumentException("expectedNodes не может быть отрицательным");
+            }
+            this.coordinator = coordinator;
+            this.nodeId = nodeId;
+            this.expectedNodes = expectedNodes;
+            return this;
+        }
+
+        /**
+         * Стоимость документа в разрешениях ограничителя
+         */
+        public Builder documentCost(DocumentCost documentCost) {
+            this.documentCost = documentCost;
+            return this;
+        }
+
+        /**
+         * Монотонный источник времени ограничителя
+         */
+        public Builder timeSource(TimeSource timeSource) {
+            this.timeSource = timeSource;
+            return this;
+        }
+
+        /**
+         * Сжатие тела запроса для документов размером от minBytes байт
+         * @param encoding способ сжатия
+         * @param minBytes порог размера сериализованного документа
+         */
+        public Builder requestCompression(ContentEncoding encoding, int minBytes) {
+            if (minBytes < 0) {
+                throw new IllegalArgumentException("minBytes не может быть отрицательным");
+            }
+            this.requestCompression = encoding;
+            this.compressionThreshold = minBytes;
+            return this;
+        }
+
+        /**
+         * Транспорт (HTTP клиент, пул соединений, сериализатор), разделяемый с другими
+         * экземплярами; по умолчанию используется {@link Transport#shared()}
+         */
+        public Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Базовый адрес API (схема, хост и порт), например тестового контура
+         */
+        public Builder baseUri(URI baseUri) {
+            if (!baseUri.isAbsolute()) {
+                throw new IllegalArgumentException("baseUri должен быть абсолютным адресом");
+            }
+            this.baseUri = baseUri;
+            return this;
+        }
+
+        /**
+         * Повторы createDocument и createDocumentAsync при сетевых ошибках, 429 и 5xx
+         */
+        public Builder retry(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Автоматический выключатель перед отправкой запросов; может быть общим
+         * для нескольких экземпляров, работающих с одним сервером
+         */
+        public Builder circuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Адаптивный лимит одновременных запросов в дополнение к ограничению скорости:
+         * лимит подстраивается по измеренному времени ответа в пределах от minConcurrency
+         * до maxConcurrency, запросы сверх него ждут в очереди после получения разрешения
+         */
+        public Builder adaptiveConcurrency(int minConcurrency, int maxConcurrency) {
+            if (minConcurrency <= 0 || minConcurrency > maxConcurrency) {
+                throw new IllegalArgumentException("minConcurrency должен быть в пределах от 1 до maxConcurrency");
+            }
+            this.minConcurrency = minConcurrency;
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Сохранение исходного тела ответа в {@link DocumentResult#getRawBody()}
+         */
+        public Builder retainRawBody(boolean retainRawBody) {
+            this.retainRawBody = retainRawBody;
+            return this;
+        }
+
+        /**
+         * Наибольший размер сохраняемого тела ответа с ошибкой, в байтах
+         */
+        public Builder maxErrorBodyBytes(int maxErrorBodyBytes) {
+            if (maxErrorBodyBytes < 0) {
+                throw new IllegalArgumentException("maxErrorBodyBytes не может быть отрицательным");
+            }
+            this.maxErrorBodyBytes = maxErrorBodyBytes;
+            return this;
+        }
+
+        /**
+         * Конверт API v3 с форматом MANUAL и типом LP_INTRODUCE_GOODS
+         */
+        public Builder envelope() {
+            return envelope("MANUAL", "LP_INTRODUCE_GOODS");
+        }
+
+        /**
+         * Отправка документа в конверте API v3: document_format, product_document (документ
+         * в Base64), signature и type. Подпись передаётся в теле, а не в заголовке Signature.
+         * @param documentFormat формат документа, например MANUAL
+         * @param type тип документа, например LP_INTRODUCE_GOODS
+         */
+        public Builder envelope(String documentFormat, String type) {
+            if (documentFormat == null || type == null) {
+                throw new IllegalArgumentException("documentFormat и type обязательны");
+            }
+            this.documentFormat = documentFormat;
+            this.documentType = type;
+            return this;
+        }
+
+        public CrptApi build() {
+            if (minRequestLimit > 0 && coordinator != null) {
+                throw new IllegalStateException("Адаптивный и распределённый режимы несовместимы");
+            }
+            return new CrptApi(this);
+        }
+    }
+
+    /**
+     * Транспорт API: один HTTP клиент с исполнителем и пулом соединений и настроенный
+     * сериализатор документов. Один транспорт обслуживает любое количество экземпляров
+     * CrptApi, ограничители запросов при этом у каждого экземпляра свои.
+     * Пул соединений HTTP/1.1 настраивается только параметрами JVM, которые JDK читает один раз
+     * на весь процесс: -Djdk.httpclient.connectionPoolSize (простаивающих соединений)
+     * и -Djdk.httpclient.keepalive.timeout (время жизни простаивающего соединения в секундах).
+     */
+    public static class Transport implements Closeable {
+        private final HttpClient httpClient;
+        private final ObjectMapper objectMapper;
+        private final ObjectWriter documentWriter;
+        private final ExecutorService executor;
+        private final StreamGate streamGate;
+
+        private Transport(TransportBuilder builder) {
+            this.executor = builder.virtualThreads ? newVirtualThreadExecutor()
+                    : builder.threads > 0 ? newHttpExecutor(builder.threads)
+                    : null;
+            HttpClient.Builder client = HttpClient.newBuilder()
+                    .version(builder.version)
+                    .connectTimeout(builder.connectTimeout);
+            if (executor != null) {
+                client.executor(executor);
+            }
+            if (builder.sslContext != null) {
+                client.sslContext(builder.sslContext);
+            }
+            this.httpClient = client.build();
+            this.streamGate = builder.maxConcurrentStreams > 0 ? new StreamGate(builder.maxConcurrentStreams) : null;
+
+            this.objectMapper = new ObjectMapper();
+            this.objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+            this.objectMapper.registerModule(new SimpleModule()
+                    .addSerializer(Document.class, new DocumentSerializer())
+                    .addSerializer(Product.class, new ProductSerializer()));
+            this.documentWriter = objectMapper.writerFor(Document.class);
+        }
+
+        /**
+         * Общий транспорт процесса с настройками по умолчанию, создаётся при первом обращении
+         */
+        public static Transport shared() {
+            return SharedHolder.INSTANCE;
+        }
+
+        public static TransportBuilder builder() {
+            return new TransportBuilder();
+        }
+
+        private static ExecutorService newHttpExecutor(int threads) {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "crpt-http-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Исполнитель "поток на задачу" на виртуальных потоках. Метод ищется во время выполнения,
+         * чтобы класс собирался и работал на Java 17, а виртуальные потоки включались на Java 21+.
+         */
+        private static ExecutorService newVirtualThreadExecutor() {
+            MethodHandle factory;
+            try {
+                factory = MethodHandles.publicLookup().findStatic(Executors.class,
+                        "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new UnsupportedOperationException("Виртуальные потоки недоступны в этой версии Java", e);
+            }
+            try {
+                return (ExecutorService) factory.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Не удалось создать исполнитель виртуальных потоков", e);
+            }
+        }
+
+        /**
+         * Отправка запроса с учётом ограничения одновременных запросов транспорта.
+         * onStart вызывается непосредственно перед началом обмена, после ожидания в очереди
+         */
+        <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                     Runnable onStart) {
+            if (streamGate == null) {
+                onStart.run();
+                return httpClient.sendAsync(request, handler);
+            }
+            return streamGate.submit(() -> {
+                onStart.run();
+                return httpClient.sendAsync(request, handler);
+            });
+        }
+
+        /**
+         * Прогрев соединений: одновременные запросы HEAD к хосту сервера. Для HTTP/1.1 каждый
+         * запрос открывает своё соединение, которое затем остаётся в пуле; для HTTP/2 запросы
+         * мультиплексируются в одно соединение. Ответ сервера любого статуса считается успехом,
+         * ошибки соединения не прерывают прогрев.
+         * @param target адрес на сервере API
+         * @param connections количество одновременных запросов
+         * @return количество запросов, на которые сервер ответил
+         */
+        public CompletableFuture<Integer> warmUp(URI target, int connections) {
+            if (connections <= 0) {
+                throw new IllegalArgumentException("connections должен быть положительным числом");
+            }
+            HttpRequest request = HttpRequest.newBuilder(target)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .timeout(Duration.ofSeconds(30))
+                    .build();
+            AtomicInteger succeeded = new AtomicInteger();
+            CompletableFuture<?>[] exchanges = new CompletableFuture<?>[connections];
+            for (int i = 0; i < connections; i++) {
+                exchanges[i] = httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                        .handle((response, error) -> error == null ? succeeded.incrementAndGet() : 0);
+            }
+            return CompletableFuture.allOf(exchanges).thenApply(ignored -> succeeded.get());
+        }
+
+        /**
+         * Сериализатор документов транспорта
+         */
+        public ObjectMapper getObjectMapper() {
+            return objectMapper;
+        }
+
+        /**
+         * Остановка собственного исполнителя транспорта. Клиенты, использующие транспорт,
+         * после закрытия работать не должны.
+         */
+        @Override
+        public void close() {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+
+        private static class SharedHolder {
+            static final Transport INSTANCE = builder().build();
+        }
+    }
+
+    /**
+     * Неблокирующее ограничение количества одновременных запросов: задачи сверх лимита
+     * ставятся в очередь и запускаются по мере завершения выполняющихся
+     */
+    private static class StreamGate {
+        private volatile int limit;
+        private final AtomicInteger active = new AtomicInteger();
+        private final ConcurrentLinkedQueue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+        StreamGate(int limit) {
+            this.limit = limit;
+        }
+
+        int getLimit() {
+            return limit;
+        }
+
+        int inFlight() {
+            return active.get();
+        }
+
+        /**
+         * Изменение лимита; после увеличения ожидающие задачи запускает вызов drain
+         */
+        void setLimit(int limit) {
+            this.limit = limit;
+        }
+
+        <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            waiters.add(() -> {
+                CompletableFuture<T> started;
+                try {
+                    started = task.get();
+                } catch (RuntimeException e) {
+                    release();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                started.whenComplete((value, error) -> {
+                    release();
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            });
+            drain();
+            return result;
+        }
+
+        private void release() {
+            active.decrementAndGet();
+            drain();
+        }
+
+        void drain() {
+            while (!waiters.isEmpty()) {
+                int current = active.get();
+                if (current >= limit) {
+                    return;
+                }
+                if (!active.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                Runnable next = waiters.poll();
+                if (next == null) {
+                    active.decrementAndGet();
+                } else {
+                    next.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Адаптивный лимит одновременных запросов по алгоритму Vegas. Очередь на стороне сервера
+     * оценивается как limit * (1 - minRtt / rtt): пока она меньше alpha, лимит растёт,
+     * при превышении beta - уменьшается; ошибки сети уменьшают лимит мультипликативно.
+     * Минимальное время ответа периодически сбрасывается, чтобы следовать за изменением
+     * базовой задержки. Запросы сверх лимита ждут в очереди StreamGate, не занимая потоков.
+     */
+    private static class VegasConcurrencyLimit {
+        private static final int PROBE_INTERVAL = 1000;
+
+        private final StreamGate gate;
+        private final int minLimit;
+        private final int maxLimit;
+        private long minRtt = Long.MAX_VALUE;
+        private int samples;
+
+        VegasConcurrencyLimit(int minLimit, int maxLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.gate = new StreamGate(minLimit);
+        }
+
+        int getLimit() {
+            return gate.getLimit();
+        }
+
+        /**
+         * @param started момент фактического начала обмена: задача может ещё ждать
+         * в очереди транспорта, и это ожидание не должно считаться задержкой сервера
+         */
+        <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task, LongSupplier started) {
+            return gate.submit(() -> {
+                int inFlight = gate.inFlight();
+                return task.get().whenComplete(
+                        (value, error) -> onSample(System.nanoTime() - started.getAsLong(), inFlight, error != null));
+            });
+        }
+
+        private void onSample(long rtt, int inFlight, boolean failed) {
+            // Ожидающие запросы запускаются вне монитора
+            if (adjust(rtt, inFlight, failed)) {
+                gate.drain();
+            }
+        }
+
+        /**
+         * @return true, если лимит увеличен
+         */
+        private synchronized boolean adjust(long rtt, int inFlight, boolean failed) {
+            int limit = gate.getLimit();
+            if (failed) {
+                return setLimit((int) (limit * 0.9));
+            }
+            if (++samples % PROBE_INTERVAL == 0) {
+                minRtt = rtt;
+            }
+            minRtt = Math.min(minRtt, Math.max(1, rtt));
+
+            double queue = limit * (1 - (double) minRtt / rtt);
+            int step = Math.max(1, (int) Math.log10(limit));
+            if (queue < 3 * step) {
+                // Рост только при использовании лимита хотя бы наполовину
+                if (inFlight * 2 >= limit) {
+                    return setLimit(limit + step);
+                }
+            } else if (queue > 6 * step) {
+                return setLimit(limit - step);
+            }
+            return false;
+        }
+
+        private boolean setLimit(int limit) {
+            int bounded = Math.max(minLimit, Math.min(maxLimit, limit));
+            boolean increased = bounded > gate.getLimit();
+            gate.setLimit(bounded);
+            return increased;
+        }
+    }
+
+    /**
+     * Построитель транспорта API
+     */
+    public static class TransportBuilder {
+        private Duration connectTimeout = Duration.ofSeconds(30);
+        private int threads;
+        private boolean virtualThreads;
+        private HttpClient.Version version = HttpClient.Version.HTTP_2;
+        private SSLContext sslContext;
+        private int maxConcurrentStreams;
+
+        private TransportBuilder() {
+        }
+
+        /**
+         * Тайм-аут установки соединения
+         */
+        public TransportBuilder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Предпочитаемая версия HTTP. При HTTP_2 клиент согласует протокол через ALPN
+         * и при отказе сервера переходит на HTTP/1.1.
+         */
+        public TransportBuilder version(HttpClient.Version version) {
+            this.version = version;
+            return this;
+        }
+
+        /**
+         * Контекст TLS, например с собственным хранилищем доверенных сертификатов
+         */
+        public TransportBuilder sslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        /**
+         * Наибольшее количество одновременных запросов транспорта; остальные ждут в очереди,
+         * не занимая потоков. Для HTTP/2 значение не больше SETTINGS_MAX_CONCURRENT_STREAMS
+         * сервера позволяет нагрузить одно мультиплексированное соединение, не открывая новых.
+         */
+        public TransportBuilder maxConcurrentStreams(int maxConcurrentStreams) {
+            if (maxConcurrentStreams <= 0) {
+                throw new IllegalArgumentException("maxConcurrentStreams должен быть положительным числом");
+            }
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            return this;
+        }
+
+        /**
+         * Собственный исполнитель HTTP клиента с фиксированным числом потоков
+         * вместо неограниченного исполнителя по умолчанию
+         */
+        public TransportBuilder executorThreads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads должен быть положительным числом");
+            }
+            this.threads = threads;
+            this.virtualThreads = false;
+            return this;
+        }
+
+        /**
+         * Режим виртуальных потоков (Java 21+): HTTP клиент и отправка после получения
+         * разрешения выполняются на исполнителе "виртуальный поток на задачу". Ожидание
+         * ограничителя построено на LockSupport и ReentrantLock и не блокирует потоки-носители,
+         * поэтому блокирующий createDocument можно вызывать из большого числа виртуальных потоков.
+         */
+        public TransportBuilder virtualThreads() {
+            this.virtualThreads = true;
+            this.threads = 0;
+            return this;
+        }
+
+        public Transport build() {
+            return new Transport(this);
+        }
+    }
+
+    /**
+     * Стоимость документа в разрешениях ограничителя запросов
+     */
+    @FunctionalInterface
+    public interface DocumentCost {
+        /**
+         * @return количество разрешений, не меньше одного
+         */
+        int permits(Document document);
+
+        /**
+         * Одно разрешение на документ независимо от размера
+         */
+        static DocumentCost perDocument() {
+            return document -> 1;
+        }
+
+        /**
+         * Одно разрешение на каждые productsPerPermit товаров документа
+         */
+        static DocumentCost perProducts(int productsPerPermit) {
+            if (productsPerPermit <= 0) {
+                throw new IllegalArgumentException("productsPerPermit должен быть положительным числом");
+            }
+            return document -> {
+                long count = document.productCount();
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (count + productsPerPermit - 1) / productsPerPermit));
+            };
+        }
+    }
+
+    /**
+     * Монотонный источник времени ограничителя с наносекундной шкалой
+     */
+    public interface TimeSource {
+        /**
+         * Текущее время в наносекундах от произвольной точки отсчёта
+         */
+        long nanoTime();
+
+        /**
+         * Приостановка текущего потока примерно на nanos наносекунд
+         */
+        default void parkNanos(long nanos) {
+            LockSupport.parkNanos(nanos);
+        }
+
+        /**
+         * Системный монотонный источник времени, не подверженный коррекции часов
+         */
+        static TimeSource system() {
+            return System::nanoTime;
+        }
+    }
+
+    /**
+     * Виртуальное время для моделирования: меняется только явным сдвигом,
+     * а ожидание мгновенно переводит часы вперёд вместо реального сна
+     */
+    public static class VirtualTimeSource implements TimeSource {
+        private final AtomicLong now = new AtomicLong();
+
+        @Override
+        public long nanoTime() {
+            return now.get();
+        }
+
+        @Override
+        public void parkNanos(long nanos) {
+            advance(nanos);
+        }
+
+        /**
+         * Сдвиг виртуального времени вперёд
+         */
+        public void advance(long nanos) {
+            now.addAndGet(Math.max(0, nanos));
+        }
+    }
+
+    /**
+     * Моделирование ограничителя в виртуальном времени: заявки поступают с заданным
+     * интервалом, каждая резервирует разрешение, а результат показывает наибольшее число
+     * разрешений в любом окне и скорость моделирования без реальных ожиданий
+     */
+    public static class LimiterSimulator {
+        private LimiterSimulator() {}
+
+        /**
+         * @param strategy стратегия ограничителя
+         * @param timeUnit единица времени для ограничения запросов
+         * @param requestLimit максимальное количество запросов в указанный промежуток времени
+         * @param acquires количество моделируемых заявок
+         * @param arrivalIntervalNanos интервал поступления заявок в виртуальном времени
+         */
+        public static SimulationResult run(LimiterStrategy strategy, TimeUnit timeUnit, int requestLimit,
+                                           long acquires, long arrivalIntervalNanos) {
+            VirtualTimeSource clock = new VirtualTimeSource();
+            RequestLimiter limiter = RequestLimiter.create(strategy, timeUnit, requestLimit, clock);
+            long window = timeUnit.toNanos(1);
+            // Скользящее окно выданных разрешений с запасом, чтобы превышение лимита отражалось в результате
+            long[] grants = new long[2 * requestLimit + 1];
+            int head = 0;
+            int size = 0;
+            int maxInWindow = 0;
+            long maxWait = 0;
+            long lastGrant = 0;
+
+            long started = System.nanoTime();
+            for (long i = 0; i < acquires; i++) {
+                long now = clock.nanoTime();
+                long wait = limiter.reserve(1, now, Long.MAX_VALUE);
+                long grant = now + wait;
+                maxWait = Math.max(maxWait, wait);
+                lastGrant = grant;
+                while (size > 0 && grants[head] <= grant - window) {
+                    head = head + 1 == grants.length ? 0 : head + 1;
+                    size--;
+                }
+                if (size < grants.length) {
+                    grants[(head + size) % grants.length] = grant;
+                    size++;
+                }
+                maxInWindow = Math.max(maxInWindow, size);
+                clock.advance(arrivalIntervalNanos);
+            }
+            return new SimulationResult(acquires, lastGrant, maxInWindow, maxWait, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Результат моделирования ограничителя
+     */
+    public static class SimulationResult {
+        private final long acquires;
+        private final long simulatedNanos;
+        private final int maxPermitsInWindow;
+        private final long maxWaitNanos;
+        private final long elapsedNanos;
+
+        public SimulationResult(long acquires, long simulatedNanos, int maxPermitsInWindow,
+                                long maxWaitNanos, long elapsedNanos) {
+            this.acquires = acquires;
+            this.simulatedNanos = simulatedNanos;
+            this.maxPermitsInWindow = maxPermitsInWindow;
+            this.maxWaitNanos = maxWaitNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getAcquires() { return acquires; }
+        /** Виртуальное время выдачи последнего разрешения */
+        public long getSimulatedNanos() { return simulatedNanos; }
+        /** Наибольшее количество разрешений в любом окне */
+        public int getMaxPermitsInWindow() { return maxPermitsInWindow; }
+        /** Наибольшее ожидание разрешения в виртуальном времени */
+        public long getMaxWaitNanos() { return maxWaitNanos; }
+        /** Реальное время моделирования */
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        /** Скорость моделирования в заявках за реальную секунду */
+        public double getAcquiresPerSecond() {
+            return acquires * 1e9 / Math.max(1, elapsedNanos);
+        }
+    }
+
+    /**
+     * Политика повторов запроса создания документа: задержка с декоррелированным
+     * джиттером, ограничение числа попыток и бюджет повторов в процентах от запросов.
+     * Повторяются только отказы, при которых запрос заведомо не обработан (ошибка соединения,
+     * 429, 503). Неоднозначные отказы (тайм-аут, обрыв, 500, 502, 504) не повторяются:
+     * документ мог быть создан, а отклонение дубликата по docId сервером не гарантировано.
+     */
+    public static class RetryPolicy {
+        private final int maxAttempts;
+        private final long baseDelayNanos;
+        private final long maxDelayNanos;
+        private final int budgetPercent;
+
+        /**
+         * @param maxAttempts наибольшее количество попыток, включая первую
+         * @param baseDelay наименьшая задержка перед повтором
+         * @param maxDelay наибольшая задержка перед повтором
+         * @param budgetPercent доля повторов от количества вызовов, в процентах
+         */
+        public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay, int budgetPercent) {
+            if (maxAttempts <= 0) {
+                throw new IllegalArgumentException("maxAttempts должен быть положительным числом");
+            }
+            if (baseDelay.isNegative() || baseDelay.compareTo(maxDelay) > 0) {
+                throw new IllegalArgumentException("baseDelay должен быть в пределах от 0 до maxDelay");
+            }
+            if (budgetPercent < 0 || budgetPercent > 100) {
+                throw new IllegalArgumentException("budgetPercent должен быть в пределах от 0 до 100");
+            }
+            this.maxAttempts = maxAttempts;
+            this.baseDelayNanos = Math.max(1, baseDelay.toNanos());
+            this.maxDelayNanos = maxDelay.toNanos();
+            this.budgetPercent = budgetPercent;
+        }
+
+        /**
+         * 4 попытки, задержка от 100 мс до 10 с, повторов не больше 10% вызовов
+         */
+        public static RetryPolicy defaults() {
+            return new RetryPolicy(4, Duration.ofMillis(100), Duration.ofSeconds(10), 10);
+        }
+
+        /**
+         * Декоррелированный джиттер: случайная задержка от базовой до утроенной предыдущей
+         */
+        long nextDelayNanos(long previousDelay) {
+            long upper = Math.min(maxDelayNanos, Math.max(baseDelayNanos, previousDelay) * 3);
+            return upper <= baseDelayNanos ? baseDelayNanos : ThreadLocalRandom.current().nextLong(baseDelayNanos, upper + 1);
+        }
+
+        boolean isRetryable(HttpResponse<?> response, Throwable error) {
+            if (response != null) {
+                int status = response.statusCode();
+                return status == 429 || status == 503;
+            }
+            for (Throwable t = error; t != null; t = t.getCause()) {
+                if (t instanceof JsonProcessingException) {
+                    return false;
+                }
+                if (t instanceof ConnectException || t instanceof HttpConnectTimeoutException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Автоматический выключатель со скользящим окном последних вызовов. Цепь размыкается,
+     * когда доля ошибок (сетевые ошибки и ответы 5xx) или медленных вызовов в окне достигает
+     * порога; в разомкнутом состоянии вызовы отклоняются сразу, не расходуя квоту. После паузы
+     * выключатель пропускает несколько пробных вызовов и по их результату замыкает цепь
+     * или снова размыкает её. В замкнутом состоянии проверка и учёт вызова обходятся
+     * без блокировок: окно хранится в AtomicIntegerArray, счётчики - в атомарных переменных.
+     */
+    public static class CircuitBreaker {
+        /**
+         * Состояние выключателя
+         */
+        public enum State {
+            /** Вызовы проходят, результаты учитываются в окне */
+            CLOSED,
+            /** Вызовы отклоняются до окончания паузы */
+            OPEN,
+            /** Проходят только пробные вызовы */
+            HALF_OPEN
+        }
+
+        /**
+         * Слушатель смены состояния выключателя
+         */
+        @FunctionalInterface
+        public interface Listener {
+            void onStateTransition(State from, State to);
+        }
+
+        private static final int RECORDED = 1;
+        private static final int FAILED = 2;
+        private static final int SLOW = 4;
+
+        private final int windowSize;
+        private final int minimumCalls;
+        private final int failureRateThreshold;
+        private final int slowCallRateThreshold;
+        private final long slowCallNanos;
+        private final long openNanos;
+        private final int halfOpenCalls;
+        private final List<Listener> listeners;
+
+        private final AtomicIntegerArray outcomes;
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicInteger recorded = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger slowCalls = new AtomicInteger();
+        private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+        private final AtomicInteger probePermits = new AtomicInteger();
+        private final AtomicInteger probeSuccesses = new AtomicInteger();
+        private volatile long openUntil;
+
+        private CircuitBreaker(CircuitBreakerBuilder builder) {
+            this.windowSize = builder.windowSize;
+            this.minimumCalls = Math.min(builder.minimumCalls, builder.windowSize);
+            this.failureRateThreshold = builder.failureRateThreshold;
+            this.slowCallRateThreshold = builder.slowCallRateThreshold;
+            this.slowCallNanos = builder.slowCallDuration.toNanos();
+            this.openNanos = builder.openDuration.toNanos();
+            this.halfOpenCalls = builder.halfOpenCalls;
+            this.listeners = List.copyOf(builder.listeners);
+            this.outcomes = new AtomicIntegerArray(windowSize);
+        }
+
+        public static CircuitBreakerBuilder builder() {
+            return new CircuitBreakerBuilder();
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        /**
+         * @return true, если вызов можно выполнять
+         */
+        boolean tryAcquirePermission() {
+            State current = state.get();
+            if (current == State.CLOSED) {
+                return true;
+            }
+            if (current == State.OPEN) {
+                if (System.nanoTime() - openUntil < 0) {
+                    return false;
+                }
+                if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                    probeSuccesses.set(0);
+                    probePermits.set(halfOpenCalls);
+                    notifyListeners(State.OPEN, State.HALF_OPEN);
+                }
+            }
+            int permits;
+            do {
+                permits = probePermits.get();
+                if (permits <= 0 || state.get() != State.HALF_OPEN) {
+                    return false;
+                }
+            } while (!probePermits.compareAndSet(permits, permits - 1));
+            return true;
+        }
+
+        /**
+         * Возврат разрешения вызова, который не дошёл до сервера
+         */
+        void release() {
+            if (state.get() == State.HALF_OPEN) {
+                probePermits.incrementAndGet();
+            }
+        }
+
+        /**
+         * Учёт результата вызова
+         * @param durationNanos длительность вызова
+         * @param failed вызов завершился ошибкой сети или ответом 5xx
+         */
+        void onResult(long durationNanos, boolean failed) {
+            boolean slow = durationNanos >= slowCallNanos;
+            State current = state.get();
+            if (current == State.HALF_OPEN) {
+                if (failed || slow) {
+                    open(State.HALF_OPEN);
+                } else if (probeSuccesses.incrementAndGet() >= halfOpenCalls
+                        && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                    notifyListeners(State.HALF_OPEN, State.CLOSED);
+                }
+            } else if (current == State.CLOSED) {
+                int outcome = RECORDED | (failed ? FAILED : 0) | (slow ? SLOW : 0);
+                int previous = outcomes.getAndSet((int) (cursor.getAndIncrement() % windowSize), outcome);
+                int total = previous == 0 ? recorded.incrementAndGet() : recorded.get();
+                int failedCalls = failures.addAndGet(bit(outcome, FAILED) - bit(previous, FAILED));
+                int slowCount = slowCalls.addAndGet(bit(outcome, SLOW) - bit(previous, SLOW));
+                if (total >= minimumCalls
+                        && (failedCalls * 100L >= (long) failureRateThreshold * total
+                        || slowCount * 100L >= (long) slowCallRateThreshold * total)) {
+                    open(State.CLOSED);
+                }
+            }
+        }
+
+        private void open(State from) {
+            openUntil = System.nanoTime() + openNanos;
+            probePermits.set(0);
+            if (state.compareAndSet(from, State.OPEN)) {
+                clearWindow();
+                notifyListeners(from, State.OPEN);
+            }
+        }
+
+        /**
+         * Очистка окна; счётчики уменьшаются парно с освобождением ячеек,
+         * поэтому одновременная запись не нарушает их согласованность
+         */
+        private void clearWindow() {
+            for (int i = 0; i < windowSize; i++) {
+                int previous = outcomes.getAndSet(i, 0);
+                if (previous != 0) {
+                    recorded.decrementAndGet();
+                    failures.addAndGet(-bit(previous, FAILED));
+                    slowCalls.addAndGet(-bit(previous, SLOW));
+                }
+            }
+        }
+
+        private static int bit(int outcome, int flag) {
+            return (outcome & flag) != 0 ? 1 : 0;
+        }
+
+        private void notifyListeners(State from, State to) {
+            for (Listener listener : listeners) {
+                listener.onStateTransition(from, to);
+            }
+        }
+    }
+
+    /**
+     * Построитель автоматического выключателя
+     */
+    public static class CircuitBreakerBuilder {
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        private int failureRateThreshold = 50;
+        private int slowCallRateThreshold = 80;
+        private Duration slowCallDuration = Duration.ofSeconds(10);
+        private Duration openDuration = Duration.ofSeconds(30);
+        private int halfOpenCalls = 5;
+        private final List<CircuitBreaker.Listener> listeners = new ArrayList<>();
+
+        private CircuitBreakerBuilder() {
+        }
+
+        /**
+         * Окно из windowSize последних вызовов; решение принимается не раньше minimumCalls вызовов
+         */
+        public CircuitBreakerBuilder window(int windowSize, int minimumCalls) {
+            if (windowSize <= 0 || minimumCalls <= 0) {
+                throw new IllegalArgumentException("windowSize и minimumCalls должны быть положительными числами");
+            }
+            this.windowSize = windowSize;
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * Порог доли ошибок в процентах
+         */
+        public CircuitBreakerBuilder failureRateThreshold(int percent) {
+            this.failureRateThreshold = checkPercent(percent);
+            return this;
+        }
+
+        /**
+         * Порог доли вызовов длительностью не меньше slowCallDuration, в процентах
+         */
+        public CircuitBreakerBuilder slowCallRateThreshold(int percent, Duration slowCallDuration) {
+            this.slowCallRateThreshold = checkPercent(percent);
+            this.slowCallDuration = slowCallDuration;
+            return this;
+        }
+
+        /**
+         * Пауза в разомкнутом состоянии и количество пробных вызовов после неё
+         */
+        public CircuitBreakerBuilder openDuration(Duration openDuration, int halfOpenCalls) {
+            if (halfOpenCalls <= 0) {
+                throw new IllegalArgumentException("halfOpenCalls должен быть положительным числом");
+            }
+            this.openDuration = openDuration;
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        /**
+         * Слушатель смены состояния; вызывается в потоке, изменившем состояние
+         */
+        public CircuitBreakerBuilder listener(CircuitBreaker.Listener listener) {
+            this.listeners.add(listener);
+            return this;
+        }
+
+        private static int checkPercent(int percent) {
+            if (percent <= 0 || percent > 100) {
+                throw new IllegalArgumentException("Порог должен быть в пределах от 1 до 100 процентов");
+            }
+            return percent;
+        }
+
+        public CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+    }
+
+    /**
+     * Бюджет повторов: каждый вызов пополняет его на budgetPercent сотых разрешения,
+     * каждый повтор расходует одно целое. Запас ограничен, чтобы после затишья
+     * не накопилась лавина повторов.
+     */
+    private static class RetryBudget {
+        private static final long UNIT = 100;
+        private static final long INITIAL = 10 * UNIT;
+        private static final long MAX = 100 * UNIT;
+
+        private final int budgetPercent;
+        private final AtomicLong balance = new AtomicLong(INITIAL);
+
+        RetryBudget(int budgetPercent) {
+            this.budgetPercent = budgetPercent;
+        }
+
+        void deposit() {
+            balance.getAndUpdate(current -> Math.min(MAX, current + budgetPercent));
+        }
+
+        boolean tryWithdraw() {
+            long current;
+            do {
+                current = balance.get();
+                if (current < UNIT) {
+                    return false;
+                }
+            } while (!balance.compareAndSet(current, current - UNIT));
+            return true;
+        }
+    }
+
+    /**
+     * Способ сжатия тела запроса
+     */
+    public enum ContentEncoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        ContentEncoding(String token) {
+            this.token = token;
+        }
+
+        OutputStream wrap(OutputStream out) throws IOException {
+            return this == GZIP ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+        }
+    }
+
+    /**
+     * Стратегия ограничения количества запросов
+     */
+    public enum LimiterStrategy {
+        /** Точный скользящий журнал меток времени запросов */
+        SLIDING_LOG,
+        /** Неблокирующий GCRA на одном атомарном состоянии: запросы равномерно распределяются по окну */
+        TOKEN_BUCKET
+    }
+
+    /**
+     * Базовый класс ограничителя количества запросов
+     */
+    private abstract static class RequestLimiter {
+        private final TimeSource timeSource;
+        private final TimingWheel timer;
+        private final AtomicLong pausedUntil;
+
+        RequestLimiter(TimeUnit timeUnit, TimeSource timeSource) {
+            this.timeSource = timeSource;
+            this.timer = TimingWheel.shared(timeUnit);
+            this.pausedUntil = new AtomicLong(timeSource.nanoTime());
+        }
+
+        static RequestLimiter create(LimiterStrategy strategy, TimeUnit timeUnit, int requestLimit, TimeSource timeSource) {
+            switch (strategy) {
+                case SLIDING_LOG:
+                    return new SlidingLogLimiter(timeUnit, requestLimit, timeSource);
+                case TOKEN_BUCKET:
+                    return new TokenBucketLimiter(timeUnit, requestLimit, timeSource);
+                default:
+                    throw new IllegalArgumentException("Неизвестная стратегия: " + strategy);
+            }
+        }
+
+        /**
+         * Резервирование разрешений, если их можно получить не позднее чем через maxWaitNanos.
+         * Резервирование выполняется в порядке обращения, поэтому крупный запрос
+         * не может бесконечно вытесняться потоком мелких.
+         * @param permits количество разрешений
+         * @param now текущее время по шкале источника времени
+         * @param maxWaitNanos максимальное допустимое ожидание
+         * @return время ожидания зарезервированных разрешений или NO_PERMIT, если ничего не резервировалось
+         */
+        abstract long reserve(int permits, long now, long maxWaitNanos);
+
+        static final long NO_PERMIT = -1;
+
+        /**
+         * Текущее количество запросов, разрешённых в окне
+         */
+        abstract int getLimit();
+
+        /**
+         * Изменение количества запросов, разрешённых в окне
+         */
+        abstract void setLimit(int limit);
+
+        /**
+         * Текущее время по шкале источника времени ограничителя
+         */
+        long now() {
+            return timeSource.nanoTime();
+        }
+
+        /**
+         * Приостановка выдачи разрешений до момента deadline по шкале источника времени
+         */
+        void pauseUntil(long deadline) {
+            pausedUntil.accumulateAndGet(deadline, (current, next) -> next - current > 0 ? next : current);
+        }
+
+        long notBeforePause(long time) {
+            long paused = pausedUntil.get();
+            return paused - time > 0 ? paused : time;
+        }
+
+        public void acquire() {
+            acquire(1);
+        }
+
+        /**
+         * Получение нескольких разрешений с ожиданием
+         * @param permits количество разрешений
+         */
+        public void acquire(int permits) {
+            long now = now();
+            parkUntil(permits, now + reserve(checkPermits(permits), now, Long.MAX_VALUE));
+        }
+
+        /**
+         * Получение разрешения без ожидания
+         * @return true, если разрешение получено
+         */
+        public boolean tryAcquire() {
+            return tryAcquire(1, 0, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Получение разрешения с ожиданием не дольше указанного времени.
+         * Если разрешение не может наступить до истечения срока, оно не резервируется.
+         * @return true, если разрешение получено
+         */
+        public boolean tryAcquire(long timeout, TimeUnit unit) {
+            return tryAcquire(1, timeout, unit);
+        }
+
+        /**
+         * Получение нескольких разрешений с ожиданием не дольше указанного времени
+         * @return true, если разрешения получены
+         */
+        public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
+            long now = now();
+            long wait = reserve(checkPermits(permits), now, Math.max(0, unit.toNanos(timeout)));
+            if (wait == NO_PERMIT) {
+                return false;
+            }
+            parkUntil(permits, now + wait);
+            return true;
+        }
+
+        /**
+         * Получение разрешений без блокировки потока: будущий результат завершается
+         * колесом таймеров ограничителя в момент наступления разрешений.
+         * Отмена результата до этого момента снимает ожидание с колеса и возвращает резервирование.
+         * @param permits количество разрешений
+         */
+        public CompletableFuture<Void> acquireAsync(int permits) {
+            long now = now();
+            long wait = reserve(checkPermits(permits), now, Long.MAX_VALUE);
+            if (wait == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            // Колесо таймеров всегда работает в реальном времени
+            return timer.schedule(System.nanoTime() + wait, () -> unreserve(permits, now + wait));
+        }
+
+        /**
+         * Возврат резервирования, отменённого до наступления разрешений.
+         * По умолчанию разрешения остаются израсходованными.
+         * @param permits количество зарезервированных разрешений
+         * @param grantTime момент выдачи резервирования по шкале источника времени
+         */
+        void unreserve(int permits, long grantTime) {
+        }
+
+        /**
+         * Освобождение ресурсов ограничителя
+         */
+        void close() {
+        }
+
+        /**
+         * Будущий результат, завершаемый колесом таймеров через nanos наносекунд
+         */
+        CompletableFuture<Void> delayAsync(long nanos) {
+            return nanos <= 0 ? CompletableFuture.completedFuture(null) : timer.schedule(System.nanoTime() + nanos, null);
+        }
+
+        private static int checkPermits(int permits) {
+            if (permits <= 0) {
+                throw new IllegalArgumentException("Количество разрешений должно быть положительным числом");
+            }
+            return permits;
+        }
+
+        /**
+         * Ожидание зарезервированных разрешений до момента deadline по шкале источника времени
+         * без удержания каких-либо блокировок. При прерывании резервирование возвращается
+         */
+        private void parkUntil(int permits, long deadline) {
+            long remaining;
+            while ((remaining = deadline - timeSource.nanoTime()) > 0) {
+                timeSource.parkNanos(remaining);
+                if (Thread.interrupted()) {
+                    unreserve(permits, deadline);
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Ожидание было прервано", new InterruptedException());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ограничитель на основе точного скользящего журнала меток времени.
+     * Журнал хранит моменты выдачи последних разрешений в заранее выделенном
+     * кольцевом буфере, поэтому после создания не выполняет ни одной аллокации,
+     * а проверка окна стоит O(1). Сверх requestLimit буфер хранит до SPARE более старых меток,
+     * которые снова становятся значимыми после отмены резервирования.
+     */
+    private static class SlidingLogLimiter extends RequestLimiter {
+        private static final int SPARE = 1024;
+        private static final int MAX_LIMIT = Integer.MAX_VALUE - 8 - SPARE;
+
+        private final long timeWindowNanos;
+        private final long[] grantTimestamps;
+        private final ReentrantLock lock;
+        private final int maxLimit;
+        private volatile int requestLimit;
+        private int tail;
+        private int size;
+
+        public SlidingLogLimiter(TimeUnit timeUnit, int requestLimit, TimeSource timeSource) {
+            super(timeUnit, timeSource);
+            if (requestLimit > MAX_LIMIT) {
+                throw new IllegalArgumentException("Стратегия SLIDING_LOG допускает requestLimit не больше " + MAX_LIMIT
+                        + ", для большего лимита используйте TOKEN_BUCKET");
+            }
+            this.timeWindowNanos = timeUnit.toNanos(1);
+            this.grantTimestamps = new long[requestLimit + Math.min(requestLimit, SPARE)];
+            this.lock = new ReentrantLock();
+            this.maxLimit = requestLimit;
+            this.requestLimit = requestLimit;
+        }
+
+        /**
+         * Запрос больше текущего лимита занимает ceil(permits / limit) окон целиком:
+         * его метки ставятся в начало последнего из них, как и у GCRA с тем же весом
+         */
+        @Override
+        long reserve(int permits, long now, long maxWaitNanos) {
+            lock.lock();
+            try {
+                long grantTime = notBeforePause(now);
+                int limit = requestLimit;
+                int blocking = limit - Math.min(permits, limit) + 1;
+                if (size >= blocking) {
+                    // В окне должно остаться место для permits меток: ждём, пока blocking-я с конца метка выйдет из окна
+                    int index = tail - blocking;
+                    if (index < 0) {
+                        index += grantTimestamps.length;
+                    }
+                    grantTime = Math.max(grantTime, grantTimestamps[index] + timeWindowNanos);
+                }
+                if (size > 0) {
+                    // Выдачи идут в порядке обращения, поэтому журнал упорядочен и после отмены резервирований
+                    grantTime = Math.max(grantTime, grantTimestamps[tail == 0 ? grantTimestamps.length - 1 : tail - 1]);
+                }
+                if (grantTime - now > maxWaitNanos) {
+                    return NO_PERMIT;
+                }
+                long timestamp = lastWindowStart(permits, grantTime, limit);
+                for (int i = Math.min(permits, limit); i > 0; i--) {
+                    if (size < grantTimestamps.length) {
+                        size++;
+                    }
+                    grantTimestamps[tail] = timestamp;
+                    tail = tail + 1 == grantTimestamps.length ? 0 : tail + 1;
+                }
+                return grantTime - now;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Метки отменённого резервирования удаляются со сдвигом более старых меток.
+         * Если буфер заполнен, часть вытесненных меток уже потеряна, поэтому освободившиеся
+         * старейшие ячейки заполняются копией старейшей оставшейся метки - не раньше потерянных.
+         */
+        @Override
+        void unreserve(int permits, long grantTime) {
+            lock.lock();
+            try {
+                int limit = requestLimit;
+                int remaining = Math.min(permits, limit);
+                long cancelled = lastWindowStart(permits, grantTime, limit);
+                int removed = 0;
+                int read = tail;
+                int write = tail;
+                for (int n = size; n > 0; n--) {
+                    read = read == 0 ? grantTimestamps.length - 1 : read - 1;
+                    long timestamp = grantTimestamps[read];
+                    if (removed < remaining && timestamp == cancelled) {
+                        removed++;
+                    } else {
+                        write = write == 0 ? grantTimestamps.length - 1 : write - 1;
+                        grantTimestamps[write] = timestamp;
+                    }
+                }
+                if (size < grantTimestamps.length) {
+                    size -= removed;
+                } else if (removed < size) {
+                    long oldest = grantTimestamps[write];
+                    for (int i = 0; i < removed; i++) {
+                        write = write == 0 ? grantTimestamps.length - 1 : write - 1;
+                        grantTimestamps[write] = oldest;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long lastWindowStart(int permits, long grantTime, int limit) {
+            return grantTime + (permits - 1) / limit * timeWindowNanos;
+        }
+
+        @Override
+        int getLimit() {
+            return requestLimit;
+        }
+
+        /**
+         * Журнал хранит метки для исходного requestLimit, поэтому лимит можно только понижать относительно него
+         */
+        @Override
+        void setLimit(int limit) {
+            requestLimit = Math.max(1, Math.min(limit, maxLimit));
+        }
+    }
+
+    /**
+     * Ограничитель на основе алгоритма GCRA (виртуальное время планирования).
+     * Всё состояние - теоретическое время прибытия (TAT) в одном AtomicLong,
+     * запрос резервирует слот одной операцией CAS и ожидает его уже вне критической секции.
+     * Всплески не допускаются: выдачи весом p и q отстоят друг от друга не меньше чем
+     * на (p + q - 1) * window / requestLimit, поэтому в любом окне не больше requestLimit разрешений.
+     * Запрос больше лимита ждёт перед выдачей не дольше окна, а после неё занимает permits / requestLimit окон.
+     */
+    private static class TokenBucketLimiter extends RequestLimiter {
+        private final long timeWindowNanos;
+        private final AtomicLong theoreticalArrivalTime;
+        private volatile int requestLimit;
+        private volatile long emissionIntervalNanos;
+
+        public TokenBucketLimiter(TimeUnit timeUnit, int requestLimit, TimeSource timeSource) {
+            super(timeUnit, timeSource);
+            this.timeWindowNanos = timeUnit.toNanos(1);
+            this.theoreticalArrivalTime = new AtomicLong(now() - timeWindowNanos);
+            setLimit(requestLimit);
+        }
+
+        @Override
+        long reserve(int permits, long now, long maxWaitNanos) {
+            while (true) {
+                long tat = theoreticalArrivalTime.get();
+                // TAT - конец интервала предыдущей выдачи; крупный запрос дополнительно ждёт свой вес
+                long earliest = tat + (Math.min(permits, requestLimit) - 1) * emissionIntervalNanos;
+                long grant = notBeforePause(Math.max(earliest - now, 0) + now);
+                long wait = grant - now;
+                if (wait > maxWaitNanos) {
+                    return NO_PERMIT;
+                }
+                if (theoreticalArrivalTime.compareAndSet(tat, grant + permits * emissionIntervalNanos)) {
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Возврат возможен, только пока резервирование последнее: TAT откатывается к моменту,
+         * не более раннему, чем до резервирования. Иначе на его место уже рассчитаны следующие.
+         */
+        @Override
+        void unreserve(int permits, long grantTime) {
+            long interval = emissionIntervalNanos;
+            theoreticalArrivalTime.compareAndSet(grantTime + permits * interval,
+                    grantTime - (Math.min(permits, requestLimit) - 1) * interval);
+        }
+
+        @Override
+        int getLimit() {
+            return requestLimit;
+        }
+
+        @Override
+        void setLimit(int limit) {
+            requestLimit = Math.max(1, limit);
+            // Округление вверх: при округлении вниз в окно помещается requestLimit + 1 разрешение
+            emissionIntervalNanos = Math.max(1, (timeWindowNanos + requestLimit - 1) / requestLimit);
+        }
+    }
+
+    /**
+     * Ограничитель GCRA с состоянием в отображаемом в память файле.
+     * Процессы одного хоста, открывшие один и тот же файл, резервируют разрешения
+     * операцией CAS над общим TAT в файле, поэтому вместе не превышают лимит.
+     * Время берётся по системным часам, так как System.nanoTime() не сравним между процессами.
+     * В файле хранится и последнее показание часов: при переводе часов назад TAT сдвигается
+     * на величину перевода, и процессы не ждут лишний раз. В остальных случаях TAT только растёт.
+     */
+    private static class SharedFileLimiter extends RequestLimiter {
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+        private static final long MAGIC = 0x43525054_4C494D31L;
+        private static final int MAGIC_OFFSET = 0;
+        private static final int WINDOW_OFFSET = 8;
+        private static final int TAT_OFFSET = 16;
+        private static final int LIMIT_OFFSET = 24;
+        private static final int WALL_OFFSET = 32;
+        private static final int FILE_SIZE = 64;
+
+        private final MappedByteBuffer state;
+        private final long timeWindowNanos;
+        private volatile int requestLimit;
+        private volatile long emissionIntervalNanos;
+
+        public SharedFileLimiter(Path stateFile, TimeUnit timeUnit, int requestLimit, TimeSource timeSource) {
+            super(timeUnit, timeSource);
+            this.timeWindowNanos = timeUnit.toNanos(1);
+            try (FileChannel channel = FileChannel.open(stateFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.state = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            } catch (IOException e) {
+                throw new RuntimeException("Ошибка открытия файла состояния ограничителя", e);
+            }
+            LONGS.compareAndSet(state, WINDOW_OFFSET, 0L, timeWindowNanos);
+            LONGS.compareAndSet(state, LIMIT_OFFSET, 0L, (long) requestLimit);
+            LONGS.compareAndSet(state, MAGIC_OFFSET, 0L, MAGIC);
+            if ((long) LONGS.getVolatile(state, MAGIC_OFFSET) != MAGIC) {
+                throw new IllegalStateException("Файл " + stateFile + " не является файлом состояния ограничителя");
+            }
+            if ((long) LONGS.getVolatile(state, WINDOW_OFFSET) != timeWindowNanos) {
+                throw new IllegalStateException("Файл " + stateFile + " используется с другой единицей времени");
+            }
+            if ((long) LONGS.getVolatile(state, LIMIT_OFFSET) != requestLimit) {
+                throw new IllegalStateException("Файл " + stateFile + " используется с другим requestLimit");
+            }
+            setLimit(requestLimit);
+        }
+
+        @Override
+        long reserve(int permits, long now, long maxWaitNanos) {
+            while (true) {
+                long wallNow = observeWallClock();
+                long tat = (long) LONGS.getVolatile(state, TAT_OFFSET);
+                long earliest = tat + (Math.min(permits, requestLimit) - 1) * emissionIntervalNanos;
+                long wallGrant = Math.max(earliest, wallNow);
+                long wait = Math.max(0, notBeforePause(now + (wallGrant - wallNow)) - now);
+                if (wait > maxWaitNanos) {
+                    return NO_PERMIT;
+                }
+                if (LONGS.compareAndSet(state, TAT_OFFSET, tat, wallNow + wait + permits * emissionIntervalNanos)) {
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Показание системных часов с учётом перевода назад. Последнее показание хранится в файле;
+         * процесс, первым заметивший более раннее время, сдвигает TAT на величину перевода.
+         * Пока сдвиг не выполнен, остальные видят TAT позже нужного и ждут дольше, а не меньше
+         */
+        private long observeWallClock() {
+            while (true) {
+                // Показание файла читается раньше часов: иначе отстающий поток примет чужое показание за перевод
+                long last = (long) LONGS.getVolatile(state, WALL_OFFSET);
+                long wallNow = wallClockNanos();
+                if (wallNow >= last) {
+                    LONGS.compareAndSet(state, WALL_OFFSET, last, wallNow);
+                    return wallNow;
+                }
+                if (LONGS.compareAndSet(state, WALL_OFFSET, last, wallNow)) {
+                    long step = last - wallNow;
+                    long tat;
+                    do {
+                        tat = (long) LONGS.getVolatile(state, TAT_OFFSET);
+                    } while (!LONGS.compareAndSet(state, TAT_OFFSET, tat, tat - step));
+                    return wallNow;
+                }
+            }
+        }
+
+        private static long wallClockNanos() {
+            Instant instant = Instant.now();
+            return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+        }
+
+        @Override
+        int getLimit() {
+            return requestLimit;
+        }
+
+        @Override
+        void setLimit(int limit) {
+            requestLimit = Math.max(1, limit);
+            emissionIntervalNanos = Math.max(1, (timeWindowNanos + requestLimit - 1) / requestLimit);
+        }
+    }
+
+    /**
+     * Координатор распределения глобального лимита запросов между узлами
+     */
+    public interface QuotaCoordinator {
+        /**
+         * Продление аренды доли лимита узлом
+         * @param nodeId идентификатор узла
+         * @param demand потребность узла в запросах за промежуток времени, измеренная за прошлый период аренды
+         * @return новая аренда узла
+         */
+        Lease renew(String nodeId, int demand);
+
+        /**
+         * Возврат аренды узлом, завершающим работу; по умолчанию аренда истекает сама
+         * @param nodeId идентификатор узла
+         */
+        default void release(String nodeId) {
+        }
+    }
+
+    /**
+     * Аренда доли глобального лимита запросов
+     */
+    public static class Lease {
+        private final int permits;
+        private final int nodes;
+        private final Duration ttl;
+
+        public Lease(int permits, int nodes, Duration ttl) {
+            this.permits = permits;
+            this.nodes = nodes;
+            this.ttl = ttl;
+        }
+
+        /** Количество запросов в промежуток времени, выделенное узлу */
+        public int getPermits() { return permits; }
+        /** Количество активных узлов на момент выдачи аренды */
+        public int getNodes() { return nodes; }
+        /** Срок действия аренды */
+        public Duration getTtl() { return ttl; }
+    }
+
+    /**
+     * Координатор в памяти процесса. Доли распределяются "наполнением":
+     * узел с малой потребностью получает сколько просил, остаток делится между занятыми узлами.
+     * Увеличение доли выдаётся только из ещё не арендованного бюджета, поэтому сумма
+     * действующих аренд не превышает глобальный лимит и при перераспределении
+     * (кроме минимальной доли в один запрос, которую получает каждый узел).
+     */
+    public static class InProcessQuotaCoordinator implements QuotaCoordinator {
+        private final int globalLimit;
+        private final Duration leaseTtl;
+        private final Map<String, NodeState> nodes = new HashMap<>();
+
+        public InProcessQuotaCoordinator(int globalLimit, Duration leaseTtl) {
+            if (globalLimit <= 0) {
+                throw new IllegalArgumentException("globalLimit должен быть положительным числом");
+            }
+            this.globalLimit = globalLimit;
+            this.leaseTtl = leaseTtl;
+        }
+
+        @Override
+        public synchronized Lease renew(String nodeId, int demand) {
+            long now = System.nanoTime();
+            nodes.values().removeIf(node -> now - node.expiresAt > 0);
+
+            NodeState current = nodes.computeIfAbsent(nodeId, id -> new NodeState());
+            current.demand = Math.max(1, demand);
+            current.expiresAt = now + leaseTtl.toNanos();
+
+            int leasedByOthers = 0;
+            for (NodeState node : nodes.values()) {
+                if (node != current) {
+                    leasedByOthers += node.permits;
+                }
+            }
+            int target = fairShare(current);
+            current.permits = Math.max(1, Math.min(target, globalLimit - leasedByOthers));
+            return new Lease(current.permits, nodes.size(), leaseTtl);
+        }
+
+        @Override
+        public synchronized void release(String nodeId) {
+            nodes.remove(nodeId);
+        }
+
+        private int fairShare(NodeState current) {
+            List<NodeState> byDemand = new ArrayList<>(nodes.values());
+            byDemand.sort(Comparator.comparingInt(node -> node.demand));
+            int remaining = globalLimit;
+            int currentShare = 0;
+            for (int i = 0; i < byDemand.size(); i++) {
+                NodeState node = byDemand.get(i);
+                int share = Math.min(node.demand, remaining / (byDemand.size() - i));
+                remaining -= share;
+                if (node == current) {
+                    currentShare = share;
+                }
+            }
+            // Неиспользованный остаток делится поровну как запас на всплески
+            return currentShare + remaining / byDemand.size();
+        }
+
+        private static class NodeState {
+            private int demand;
+            private int permits;
+            private long expiresAt;
+        }
+    }
+
+    /**
+     * TCP-сервер, предоставляющий координатор квот узлам на других процессах или машинах.
+     * Протокол строковый: запрос "RENEW nodeId demand", ответ "LEASE permits nodes ttlMillis";
+     * запрос "RELEASE nodeId", ответ "OK".
+     */
+    public static class TcpQuotaCoordinatorServer implements Closeable {
+        private final QuotaCoordinator coordinator;
+        private final ServerSocket serverSocket;
+
+        public TcpQuotaCoordinatorServer(QuotaCoordinator coordinator, int port) throws IOException {
+            this.coordinator = coordinator;
+            this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(this::acceptLoop, "crpt-quota-coordinator");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /** Порт, на котором принимаются подключения узлов */
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void acceptLoop() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread handler = new Thread(() -> serve(socket), "crpt-quota-coordinator-" + socket.getPort());
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    // Сокет закрыт - завершение работы
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                 PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII), true)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (parts.length == 2 && "RELEASE".equals(parts[0])) {
+                        coordinator.release(parts[1]);
+                        out.println("OK");
+                        continue;
+                    }
+                    if (parts.length != 3 || !"RENEW".equals(parts[0])) {
+                        out.println("ERROR");
+                        continue;
+                    }
+                    Lease lease = coordinator.renew(parts[1], Integer.parseInt(parts[2]));
+                    out.println("LEASE " + lease.getPermits() + " " + lease.getNodes() + " " + lease.getTtl().toMillis());
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Соединение с узлом разорвано или нарушен протокол
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Клиент координатора квот, подключающийся к TcpQuotaCoordinatorServer
+     */
+    public static class TcpQuotaCoordinatorClient implements QuotaCoordinator, Closeable {
+        private final InetSocketAddress address;
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+
+        public TcpQuotaCoordinatorClient(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public synchronized Lease renew(String nodeId, int demand) {
+            try {
+                String line = request("RENEW " + nodeId + " " + demand);
+                String[] parts = line == null ? new String[0] : line.split(" ");
+                if (parts.length != 4 || !"LEASE".equals(parts[0])) {
+                    throw new IOException("Некорректный ответ координатора: " + line);
+                }
+                return new Lease(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        Duration.ofMillis(Long.parseLong(parts[3])));
+            } catch (IOException | NumberFormatException e) {
+                closeQuietly();
+                throw new RuntimeException("Ошибка обращения к координатору квот", e);
+            }
+        }
+
+        @Override
+        public synchronized void release(String nodeId) {
+            try {
+                String line = request("RELEASE " + nodeId);
+                if (!"OK".equals(line)) {
+                    throw new IOException("Некорректный ответ координатора: " + line);
+                }
+            } catch (IOException e) {
+                closeQuietly();
+                throw new RuntimeException("Ошибка обращения к координатору квот", e);
+            }
+        }
+
+        private String request(String line) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.connect(address, 5000);
+                socket.setSoTimeout(5000);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII), true);
+            }
+            out.println(line);
+            return in.readLine();
+        }
+
+        private void closeQuietly() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Соединение уже разорвано
+            }
+            socket = null;
+        }
+
+        @Override
+        public synchronized void close() {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Ограничитель распределённого режима: локальный ограничитель с лимитом, равным
+     * арендованной доле глобального лимита. Аренда продлевается в фоне каждую треть срока,
+     * при недоступности координатора после истечения аренды используется равная доля
+     * от последнего известного числа узлов. Продление выполняет общий для всех узлов процесса
+     * поток по слабой ссылке: брошенный без close() ограничитель перестаёт продлевать аренду
+     * после сборки мусора, и она истекает сама.
+     */
+    private static class DistributedLimiter extends RequestLimiter {
+        private static final ScheduledExecutorService RENEWER = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "crpt-quota-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final RequestLimiter local;
+        private final QuotaCoordinator coordinator;
+        private final String nodeId;
+        private final int globalLimit;
+        private final long timeWindowNanos;
+        private final AtomicInteger requested;
+        private final AtomicBoolean throttled;
+        private final AtomicLong backlogUntil;
+        private final WeakReference<DistributedLimiter> self;
+        private ScheduledFuture<?> renewal;
+        private boolean closed;
+        private long periodStart;
+        private long leaseExpiresAt;
+        private int knownNodes;
+
+        DistributedLimiter(RequestLimiter local, QuotaCoordinator coordinator, String nodeId, int expectedNodes,
+                           TimeUnit timeUnit) {
+            super(timeUnit, local.timeSource);
+            this.local = local;
+            this.coordinator = coordinator;
+            this.nodeId = nodeId;
+            this.globalLimit = local.getLimit();
+            this.timeWindowNanos = timeUnit.toNanos(1);
+            this.requested = new AtomicInteger();
+            this.throttled = new AtomicBoolean();
+            this.backlogUntil = new AtomicLong(now());
+            this.self = new WeakReference<>(this);
+            this.periodStart = now();
+            this.leaseExpiresAt = periodStart;
+            // До первой аренды число узлов неизвестно: без ожидаемого количества доля - один запрос
+            this.knownNodes = expectedNodes > 0 ? expectedNodes : globalLimit;
+            local.setLimit(1);
+            renew();
+        }
+
+        private static void renewIfReachable(WeakReference<DistributedLimiter> reference) {
+            DistributedLimiter limiter = reference.get();
+            if (limiter != null) {
+                limiter.renew();
+            }
+        }
+
+        private synchronized void renew() {
+            if (closed) {
+                return;
+            }
+            long now = now();
+            long elapsed = Math.max(1, now - periodStart);
+            int demand = (int) Math.min(Integer.MAX_VALUE, requested.getAndSet(0) * timeWindowNanos / elapsed);
+            if (throttled.getAndSet(false) || backlogUntil.get() - now > 0) {
+                // Запросы упирались в лимит, и их поток не отражает реальную потребность:
+                // узел претендует на весь лимит, а координатор делит его поровну между такими узлами
+                demand = globalLimit;
+            }
+            periodStart = now;
+            long nextRenewal;
+            try {
+                Lease lease = coordinator.renew(nodeId, demand);
+                local.setLimit(lease.getPermits());
+                knownNodes = Math.max(1, lease.getNodes());
+                leaseExpiresAt = now + lease.getTtl().toNanos();
+                nextRenewal = Math.max(1, lease.getTtl().toNanos() / 3);
+            } catch (RuntimeException e) {
+                if (now - leaseExpiresAt >= 0) {
+                    local.setLimit(Math.max(1, globalLimit / knownNodes));
+                }
+                nextRenewal = Math.max(1, Math.min(timeWindowNanos, leaseExpiresAt - now));
+            }
+            WeakReference<DistributedLimiter> reference = self;
+            renewal = RENEWER.schedule(() -> renewIfReachable(reference), nextRenewal, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Прекращение продления и возврат аренды координатору
+         */
+        @Override
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            renewal.cancel(false);
+            try {
+                coordinator.release(nodeId);
+            } catch (RuntimeException e) {
+                // Координатор недоступен - аренда истечёт сама
+            }
+        }
+
+        @Override
+        long reserve(int permits, long now, long maxWaitNanos) {
+            requested.addAndGet(permits);
+            long wait = local.reserve(permits, now, maxWaitNanos);
+            if (wait == NO_PERMIT) {
+                throttled.set(true);
+            } else if (wait > 0) {
+                // Пока есть зарезервированные наперёд разрешения, узел упирается в свою долю
+                backlogUntil.accumulateAndGet(now + wait, (current, next) -> next - current > 0 ? next : current);
+            }
+            return wait;
+        }
+
+        @Override
+        void unreserve(int permits, long grantTime) {
+            local.unreserve(permits, grantTime);
+        }
+
+        @Override
+        int getLimit() {
+            return local.getLimit();
+        }
+
+        @Override
+        void setLimit(int limit) {
+            local.setLimit(limit);
+        }
+
+        @Override
+        void pauseUntil(long deadline) {
+            local.pauseUntil(deadline);
+        }
+    }
+
+    /**
+     * Адаптивное управление лимитом запросов по ответам сервера (AIMD).
+     * Ответ 429 вдвое снижает лимит (не чаще раза за окно), каждые limit успешных
+     * ответов увеличивают его на единицу. Retry-After и исчерпанный X-RateLimit-Remaining
+     * приостанавливают выдачу разрешений до указанного сервером момента, но не дольше maxPause.
+     */
+    private static class AdaptiveRateController {
+        private final RequestLimiter limiter;
+        private final long timeWindowNanos;
+        private final int minLimit;
+        private final int maxLimit;
+        private final long maxPauseNanos;
+        private final AtomicInteger successes;
+        private long lastDecrease;
+
+        AdaptiveRateController(RequestLimiter limiter, TimeUnit timeUnit, int minLimit, int maxLimit, long maxPauseNanos) {
+            this.limiter = limiter;
+            this.timeWindowNanos = timeUnit.toNanos(1);
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.maxPauseNanos = maxPauseNanos;
+            this.successes = new AtomicInteger();
+            this.lastDecrease = limiter.now() - timeWindowNanos;
+        }
+
+        void onResponse(HttpResponse<?> response) {
+            int status = response.statusCode();
+            HttpHeaders headers = response.headers();
+            long now = limiter.now();
+
+            if (status == 429 || status == 503) {
+                headers.firstValue("Retry-After")
+                        .map(AdaptiveRateController::parseRetryAfter)
+                        .ifPresent(delay -> limiter.pauseUntil(now + Math.min(delay, maxPauseNanos)));
+            }
+            if (headers.firstValue("X-RateLimit-Remaining").filter("0"::equals).isPresent()) {
+                headers.firstValue("X-RateLimit-Reset")
+                        .map(AdaptiveRateController::parseRateLimitReset)
+                        .ifPresent(delay -> limiter.pauseUntil(now + Math.min(delay, maxPauseNanos)));
+            }
+
+            if (status == 429) {
+                decrease(now);
+            } else if (status >= 200 && status < 300 && successes.incrementAndGet() >= limiter.getLimit()) {
+                increase();
+            }
+        }
+
+        private synchronized void decrease(long now) {
+            if (now - lastDecrease < timeWindowNanos) {
+                return;
+            }
+            lastDecrease = now;
+            successes.set(0);
+            limiter.setLimit(Math.max(minLimit, limiter.getLimit() / 2));
+        }
+
+        private synchronized void increase() {
+            if (successes.get() < limiter.getLimit()) {
+                return;
+            }
+            successes.set(0);
+            limiter.setLimit(Math.min(maxLimit, limiter.getLimit() + 1));
+        }
+
+        /**
+         * Разбор задержки в секундах или даты HTTP, результат - в наносекундах
+         */
+        static Long parseRetryAfter(String value) {
+            try {
+                return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value.trim())));
+            } catch (NumberFormatException e) {
+                try {
+                    Instant at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                    return Math.max(0, Duration.between(Instant.now(), at).toNanos());
+                } catch (DateTimeParseException ex) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Разбор X-RateLimit-Reset: число, сравнимое с текущим временем Unix в секундах, - момент сброса,
+         * меньшее - задержка в секундах. Результат - в наносекундах.
+         */
+        static Long parseRateLimitReset(String value) {
+            long reset;
+            try {
+                reset = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            long epochSecond = Instant.now().getEpochSecond();
+            if (reset > epochSecond / 2) {
+                reset -= epochSecond;
+            }
+            return TimeUnit.SECONDS.toNanos(Math.max(0, reset));
+        }
+    }
+
+    /**
+     * Иерархическое хешированное колесо таймеров для отложенной выдачи разрешений.
+     * Постановка и отмена ожидания стоят O(1) независимо от числа ожидающих:
+     * вызывающие потоки только кладут узел в неблокирующий стек, а всю работу
+     * со слотами выполняет единственный поток колеса, который раз в тик
+     * пачкой завершает все наступившие ожидания. Колёса общие для всех ограничителей
+     * с одним разрешением тика, поэтому число потоков не зависит от числа клиентов.
+     */
+    private static class TimingWheel {
+        private static final ConcurrentHashMap<Long, TimingWheel> SHARED = new ConcurrentHashMap<>();
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int LEVELS = 4;
+        private static final long MAX_SPAN_TICKS = 1L << (SLOT_BITS * LEVELS);
+        private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final long MAX_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final long tickNanos;
+        private final long startTime;
+        private final Timeout[][] wheel;
+        private final AtomicReference<Timeout> scheduled = new AtomicReference<>();
+        private final AtomicReference<Timeout> cancelled = new AtomicReference<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Thread worker;
+        private volatile boolean idle;
+        private long currentTick;
+        private long active;
+
+        TimingWheel(long tickNanos) {
+            this.tickNanos = tickNanos;
+            this.startTime = System.nanoTime();
+            this.wheel = new Timeout[LEVELS][SLOTS];
+            for (Timeout[] level : wheel) {
+                for (int i = 0; i < SLOTS; i++) {
+                    level[i] = new Timeout(this, 0, null);
+                    level[i].prev = level[i];
+                    level[i].next = level[i];
+                }
+            }
+        }
+
+        /**
+         * Разрешение тика выводится из окна ограничителя: около тысячной доли окна,
+         * но не точнее миллисекунды и не грубее 100 мс
+         */
+        static long tickFor(TimeUnit timeUnit) {
+            return Math.min(MAX_TICK_NANOS, Math.max(MIN_TICK_NANOS, timeUnit.toNanos(1) / 1000));
+        }
+
+        /**
+         * Общее колесо с разрешением тика для указанной единицы времени
+         */
+        static TimingWheel shared(TimeUnit timeUnit) {
+            return SHARED.computeIfAbsent(tickFor(timeUnit), TimingWheel::new);
+        }
+
+        /**
+         * Постановка ожидания до момента deadline по шкале System.nanoTime().
+         * Отмена возвращённого результата снимает ожидание с колеса за O(1).
+         * @param onCancel действие при отмене ожидания до срока или null
+         */
+        CompletableFuture<Void> schedule(long deadline, Runnable onCancel) {
+            Timeout timeout = new Timeout(this, deadline, onCancel);
+            push(scheduled, timeout);
+            if (started.compareAndSet(false, true)) {
+                Thread thread = new Thread(this::run, "crpt-limiter-timer");
+                thread.setDaemon(true);
+                worker = thread;
+                thread.start();
+            } else if (idle) {
+                LockSupport.unpark(worker);
+            }
+            return timeout;
+        }
+
+        private static void push(AtomicReference<Timeout> stack, Timeout timeout) {
+            Timeout head;
+            do {
+                head = stack.get();
+                if (stack == timeout.owner.scheduled) {
+                    timeout.nextScheduled = head;
+                } else {
+                    timeout.nextCancelled = head;
+                }
+            } while (!stack.compareAndSet(head, timeout));
+        }
+
+        private void run() {
+            List<Timeout> expired = new ArrayList<>();
+            while (true) {
+                long targetTick = (System.nanoTime() - startTime) / tickNanos;
+                unlinkCancelled();
+                if (active == 0) {
+                    // Колесо пусто - пропускаем пустые тики целиком
+                    currentTick = Math.max(currentTick, targetTick);
+                }
+                placeScheduled(expired);
+                while (currentTick < targetTick) {
+                    advance(expired);
+                }
+                for (Timeout timeout : expired) {
+                    timeout.complete(null);
+                }
+                expired.clear();
+
+                if (active == 0) {
+                    idle = true;
+                    if (scheduled.get() == null) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                } else {
+                    long nextTick = startTime + (currentTick + 1) * tickNanos;
+                    LockSupport.parkNanos(this, nextTick - System.nanoTime());
+                }
+            }
+        }
+
+        private void unlinkCancelled() {
+            for (Timeout timeout = cancelled.getAndSet(null); timeout != null; timeout = timeout.nextCancelled) {
+                if (timeout.prev != null) {
+                    timeout.unlink();
+                    active--;
+                }
+            }
+        }
+
+        private void placeScheduled(List<Timeout> expired) {
+            for (Timeout timeout = scheduled.getAndSet(null); timeout != null; timeout = timeout.nextScheduled) {
+                if (!timeout.isDone()) {
+                    place(timeout, expired);
+                }
+            }
+        }
+
+        private void place(Timeout timeout, List<Timeout> expired) {
+            // Округление вверх: разрешение никогда не выдаётся раньше срока
+            long deadlineTick = -Math.floorDiv(startTime - timeout.deadline, tickNanos);
+            long ticks = deadlineTick - currentTick;
+            if (ticks <= 0) {
+                expired.add(timeout);
+                return;
+            }
+            if (ticks >= MAX_SPAN_TICKS) {
+                // Слишком далёкий срок кладётся в верхний уровень и будет перераспределён при каскаде
+                deadlineTick = currentTick + MAX_SPAN_TICKS - 1;
+                ticks = MAX_SPAN_TICKS - 1;
+            }
+            int level = 0;
+            while (ticks >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            int slot = (int) (deadlineTick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+            timeout.linkBefore(wheel[level][slot]);
+            active++;
+        }
+
+        private void advance(List<Timeout> expired) {
+            long tick = ++currentTick;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(wheel[level][(int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1)], expired);
+                }
+            }
+            Timeout head = wheel[0][(int) tick & (SLOTS - 1)];
+            for (Timeout timeout = head.next; timeout != head; timeout = head.next) {
+                timeout.unlink();
+                active--;
+                expired.add(timeout);
+            }
+        }
+
+        private void cascade(Timeout head, List<Timeout> expired) {
+            for (Timeout timeout = head.next; timeout != head; timeout = head.next) {
+                timeout.unlink();
+                active--;
+                place(timeout, expired);
+            }
+        }
+
+        /**
+         * Ожидание в колесе: узел двусвязного списка слота и одновременно результат для вызывающего
+         */
+        private static class Timeout extends CompletableFuture<Void> {
+            private final TimingWheel owner;
+            private final long deadline;
+            private final Runnable onCancel;
+            private Timeout prev;
+            private Timeout next;
+            private Timeout nextScheduled;
+            private Timeout nextCancelled;
+
+            Timeout(TimingWheel owner, long deadline, Runnable onCancel) {
+                this.owner = owner;
+                this.deadline = deadline;
+                this.onCancel = onCancel;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    push(owner.cancelled, this);
+                    if (onCancel != null) {
+                        onCancel.run();
+                    }
+                }
+                return cancelled;
+            }
+
+            void linkBefore(Timeout head) {
+                prev = head.prev;
+                next = head;
+                head.prev.next = this;
+                head.prev = this;
+            }
+
+            void unlink() {
+                prev.next = next;
+                next.prev = prev;
+                prev = null;
+                next = null;
+            }
+        }
+    }
+
+    /**
+     * Выполняющаяся отправка документа с docId, общая для одновременных вызовов.
+     * Результат - ApiResponse или DocumentResult, смотря какой вызов начал отправку
+     */
+    private static class InFlightCall {
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        volatile boolean textWanted;
+    }
+
+    /**
+     * Подписчик тела ответа создания документа: неблокирующий парсер Jackson получает блоки
+     * ByteBuffer как есть и извлекает поля верхнего уровня value, code и error_message
+     * (description, message), не собирая тело в строку. Тело ответа с ошибкой копируется
+     * не больше чем на maxErrorBodyBytes байт - для текста ошибки, если тело не JSON,
+     * и для getRawBody; тело успешного ответа копируется только при retainRawBody.
+     */
+    private static class DocumentResultSubscriber implements HttpResponse.BodySubscriber<DocumentResult> {
+        private final int statusCode;
+        private final boolean retainRawBody;
+        private final int rawLimit;
+        private final JsonParser parser;
+        private final ByteBufferFeeder feeder;
+        private final ByteArrayOutputStream raw;
+        private final CompletableFuture<DocumentResult> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private boolean malformed;
+        private int depth;
+        private String field;
+        private String documentId;
+        private String errorCode;
+        private String errorMessage;
+
+        private DocumentResultSubscriber(JsonFactory factory, int statusCode, boolean retainRawBody, int maxErrorBodyBytes)
+                throws IOException {
+            boolean failed = statusCode < 200 || statusCode >= 300;
+            this.statusCode = statusCode;
+            this.retainRawBody = retainRawBody;
+            this.rawLimit = failed ? maxErrorBodyBytes : retainRawBody ? Integer.MAX_VALUE : 0;
+            this.parser = factory.createNonBlockingByteBufferParser();
+            this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+            this.raw = rawLimit > 0 ? new ByteArrayOutputStream() : null;
+        }
+
+        static HttpResponse.BodyHandler<DocumentResult> handler(JsonFactory factory, boolean retainRawBody,
+                                                                int maxErrorBodyBytes) {
+            return responseInfo -> {
+                try {
+                    return new DocumentResultSubscriber(factory, responseInfo.statusCode(), retainRawBody, maxErrorBodyBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+        }
+
+        @Override
+        public CompletionStage<DocumentResult> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            for (ByteBuffer item : items) {
+                if (raw != null && raw.size() < rawLimit) {
+                    ByteBuffer copy = item.duplicate();
+                    byte[] bytes = new byte[Math.min(copy.remaining(), rawLimit - raw.size())];
+                    copy.get(bytes);
+                    raw.write(bytes, 0, bytes.length);
+                }
+                if (!malformed) {
+                    try {
+                        feeder.feedInput(item);
+                        readTokens();
+                    } catch (IOException e) {
+                        // Тело не JSON: разбор прекращается, текст ошибки берётся из сохранённого тела
+                        malformed = true;
+                    }
+                }
+            }
+            subscription.request(1);
+        }
+
+        private void readTokens() throws IOException {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                switch (token) {
+                    case START_OBJECT:
+                    case START_ARRAY:
+                        depth++;
+                        field = null;
+                        break;
+                    case END_OBJECT:
+                    case END_ARRAY:
+                        depth--;
+                        break;
+                    case FIELD_NAME:
+                        // Имена полей канонизируются парсером и не создают новых строк
+                        field = depth == 1 ? parser.getCurrentName() : null;
+                        break;
+                    default:
+                        if (field != null && token != JsonToken.VALUE_NULL) {
+                            assign(field, parser.getText());
+                        }
+                        field = null;
+                }
+            }
+        }
+
+        private void assign(String name, String value) {
+            switch (name) {
+                case "value":
+                    documentId = value;
+                    break;
+                case "code":
+                    errorCode = value;
+                    break;
+                case "error_message":
+                case "description":
+                case "message":
+                    if (errorMessage == null) {
+                        errorMessage = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closeParser();
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!malformed) {
+                try {
+                    feeder.endOfInput();
+                    readTokens();
+                } catch (IOException e) {
+                    malformed = true;
+                }
+            }
+            closeParser();
+            String body = raw != null ? new String(raw.toByteArray(), StandardCharsets.UTF_8) : null;
+            boolean failed = statusCode < 200 || statusCode >= 300;
+            String message = errorMessage == null && failed && body != null && !body.isEmpty() ? body : errorMessage;
+            result.complete(new DocumentResult(statusCode, documentId, errorCode, message, retainRawBody ? body : null));
+        }
+
+        private void closeParser() {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // Парсер работает с памятью, закрытие освобождает только буферы
+            }
+        }
+    }
+
+    /**
+     * Метод API: адрес, разобранный один раз, и неизменяемый шаблон запроса
+     * с проверенными статическими заголовками. Запрос метода получается копией шаблона,
+     * в которую остаётся добавить тело, подпись и тайм-аут.
+     */
+    private static class Endpoint {
+        private final URI uri;
+        private final HttpRequest.Builder template;
+
+        /**
+         * @param baseUri базовый адрес API
+         * @param path путь метода
+         * @param headers пары имя-значение статических заголовков
+         */
+        Endpoint(URI baseUri, String path, String... headers) {
+            this.uri = baseUri.resolve(path);
+            this.template = HttpRequest.newBuilder(uri);
+            if (headers.length > 0) {
+                template.headers(headers);
+            }
+        }
+
+        HttpRequest.Builder newRequest() {
+            return template.copy();
+        }
+    }
+
+    /**
+     * Тело запроса, сериализующее документ потоково по мере запроса данных HTTP-клиентом.
+     * Документ пишется JsonGenerator'ом сразу в UTF-8 в блоки ByteBuffer фиксированного размера,
+     * поэтому в памяти находятся только буфер генератора и несколько блоков,
+     * а не строка со всем документом и её копия в байтах.
+     * Первая подписка продолжает начатую при проверке порога сжатия сериализацию,
+     * каждая следующая сериализует документ заново.
+     */
+    private static class DocumentBodyPublisher implements HttpRequest.BodyPublisher {
+        static final int CHUNK_SIZE = 16 * 1024;
+
+        private final ObjectWriter documentWriter;
+        private final Document document;
+        private final Envelope envelope;
+        private final ContentEncoding encoding;
+        private final AtomicReference<ProbedDocument> probed;
+
+        DocumentBodyPublisher(ObjectWriter documentWriter, Document document, Envelope envelope, ContentEncoding encoding) {
+            this(documentWriter, document, envelope, encoding, null);
+        }
+
+        DocumentBodyPublisher(ObjectWriter documentWriter, Document document, Envelope envelope, ContentEncoding encoding,
+                              ProbedDocument probed) {
+            this.documentWriter = documentWriter;
+            this.document = document;
+            this.envelope = envelope;
+            this.encoding = encoding;
+            this.probed = new AtomicReference<>(probed);
+        }
+
+        /**
+         * Закрытие начатой сериализации, если тело так и не было запрошено
+         */
+        void discard() {
+            ProbedDocument unused = probed.getAndSet(null);
+            if (unused != null) {
+                unused.writer.close();
+            }
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new DocumentSubscription(subscriber, documentWriter, document, envelope, encoding,
+                    probed.getAndSet(null)));
+        }
+    }
+
+    /**
+     * Подписка на тело запроса: очередной блок сериализуется только при наличии спроса
+     */
+    private static class DocumentSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ObjectWriter documentWriter;
+        private final Document document;
+        private final Envelope envelope;
+        private final ContentEncoding encoding;
+        private final ChunkOutputStream chunks;
+        private final AtomicLong demand;
+        private final AtomicInteger wip;
+        private volatile boolean cancelled;
+        private ProbedDocument probed;
+        private DocumentWriter writer;
+        private boolean completed;
+
+        DocumentSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, ObjectWriter documentWriter,
+                             Document document, Envelope envelope, ContentEncoding encoding, ProbedDocument probed) {
+            this.subscriber = subscriber;
+            this.probed = probed;
+            this.documentWriter = documentWriter;
+            this.document = document;
+            this.envelope = envelope;
+            this.encoding = encoding;
+            this.chunks = new ChunkOutputStream(DocumentBodyPublisher.CHUNK_SIZE);
+            this.demand = new AtomicLong();
+            this.wip = new AtomicInteger();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Запрошено неположительное количество блоков: " + n));
+                return;
+            }
+            demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                try {
+                    while (!cancelled && !completed && demand.get() > 0) {
+                        ByteBuffer chunk = nextChunk();
+                        if (chunk == null) {
+                            completed = true;
+                            subscriber.onComplete();
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(chunk);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    completed = true;
+                    subscriber.onError(e);
+                }
+                if ((cancelled || completed) && (writer != null || probed != null)) {
+                    // Освобождаем источник товаров, например открытый файл
+                    (writer != null ? writer : probed.writer).close();
+                    probed = null;
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        private ByteBuffer nextChunk() throws IOException {
+            if (writer == null) {
+                // Сжатие идёт в том же проходе: генератор пишет в поток сжатия поверх блоков
+                OutputStream out = encoding == null ? chunks : encoding.wrap(chunks);
+                if (probed != null) {
+                    probed.probe.writeTo(out);
+                    probed.out.switchTo(out);
+                    writer = probed.writer;
+                    probed = null;
+                    if (writer.isDone()) {
+                        // Порог пройден на последнем шаге: документ целиком в уже записанных байтах
+                        out.close();
+                    }
+                } else {
+                    writer = new DocumentWriter(documentWriter, document, envelope, out);
+                }
+            }
+            while (chunks.isEmpty() && writer.writeNext()) {
+                // Сериализуем товары, пока не наберётся полный блок
+            }
+            return chunks.poll();
+        }
+    }
+
+    /**
+     * Сериализация, начатая при проверке порога сжатия: писатель, его переключаемый
+     * поток вывода и уже записанные байты
+     */
+    private static class ProbedDocument {
+        final DocumentWriter writer;
+        final SwitchableOutputStream out;
+        final ByteArrayOutputStream probe;
+
+        ProbedDocument(DocumentWriter writer, SwitchableOutputStream out, ByteArrayOutputStream probe) {
+            this.writer = writer;
+            this.out = out;
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * Поток вывода с переключаемым получателем
+     */
+    private static class SwitchableOutputStream extends OutputStream {
+        private OutputStream target;
+
+        SwitchableOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        void switchTo(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+
+    /**
+     * Конверт запроса API v3: документ передаётся в поле product_document в Base64,
+     * рядом с document_format, signature и type. Начало и конец конверта готовятся заранее,
+     * а документ между ними кодируется в Base64 потоково в том же проходе сериализации.
+     */
+    private static class Envelope {
+        private final byte[] prefix;
+        private final byte[] suffix;
+
+        Envelope(String documentFormat, String type, String signature) {
+            JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+            this.prefix = ("{\"document_format\":\"" + new String(encoder.quoteAsString(documentFormat))
+                    + "\",\"product_document\":\"").getBytes(StandardCharsets.UTF_8);
+            this.suffix = ("\",\"signature\":\"" + new String(encoder.quoteAsString(signature))
+                    + "\",\"type\":\"" + new String(encoder.quoteAsString(type)) + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Поток, не закрывающий целевой поток: закрытие потока Base64 дописывает остаток
+     * и выравнивание, а внешний поток остаётся открытым для конца конверта
+     */
+    private static class NonClosingOutputStream extends OutputStream {
+        private final OutputStream target;
+
+        NonClosingOutputStream(OutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // Целевой поток закрывает владелец
+        }
+    }
+
+    /**
+     * Поток вывода, нарезающий записанные байты на блоки ByteBuffer фиксированного размера
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private final int chunkSize;
+        private final ArrayDeque<ByteBuffer> ready;
+        private ByteBuffer current;
+
+        ChunkOutputStream(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.ready = new ArrayDeque<>();
+        }
+
+        @Override
+        public void write(int b) {
+            if (current == null) {
+                current = ByteBuffer.allocate(chunkSize);
+            }
+            current.put((byte) b);
+            if (!current.hasRemaining()) {
+                ready.add(current.flip());
+                current = null;
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (current == null) {
+                    current = ByteBuffer.allocate(chunkSize);
+                }
+                int n = Math.min(length, current.remaining());
+                current.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+                if (!current.hasRemaining()) {
+                    ready.add(current.flip());
+                    current = null;
+                }
+            }
+        }
+
+        /**
+         * Завершение записи: неполный последний блок становится доступен для отправки
+         */
+        @Override
+        public void close() {
+            if (current != null && current.position() > 0) {
+                ready.add(current.flip());
+            }
+            current = null;
+        }
+
+        boolean isEmpty() {
+            return ready.isEmpty();
+        }
+
+        ByteBuffer poll() {
+            return ready.poll();
+        }
+    }
+
+    /**
+     * Пошаговая сериализация документа: заголовок, по одному товару за шаг, окончание
+     */
+    private static class DocumentWriter implements Closeable {
+        private final JsonGenerator generator;
+        private final Document document;
+        private final Envelope envelope;
+        private final OutputStream out;
+        private ProductCursor products;
+        private boolean started;
+        private boolean done;
+
+        /**
+         * @param envelope конверт API v3 или null для отправки документа как есть
+         * @param out поток вывода тела запроса
+         */
+        DocumentWriter(ObjectWriter documentWriter, Document document, Envelope envelope, OutputStream out)
+                throws IOException {
+            this.document = document;
+            this.envelope = envelope;
+            this.out = out;
+            if (envelope == null) {
+                this.generator = documentWriter.createGenerator(out, JsonEncoding.UTF8);
+            } else {
+                // Генератор пишет документ сразу в кодировщик Base64 поверх тела запроса
+                out.write(envelope.prefix);
+                OutputStream base64 = Base64.getEncoder().wrap(new NonClosingOutputStream(out));
+                this.generator = documentWriter.createGenerator(base64, JsonEncoding.UTF8);
+            }
+        }
+
+        /**
+         * Запись следующей части документа
+         * @return false, если документ записан полностью
+         */
+        boolean writeNext() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (!started) {
+                products = document.openProductCursor();
+                DocumentJson.writeHeader(generator, document, products != null);
+                started = true;
+            } else if (products != null && products.writeNext(generator)) {
+                // Товар записан
+            } else {
+                DocumentJson.writeFooter(generator, document, products != null);
+                done = true;
+                generator.close();
+                if (envelope != null) {
+                    out.write(envelope.suffix);
+                    out.close();
+                }
+                close();
+            }
+            return true;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Количество байт, накопленных в буфере генератора и ещё не переданных в поток вывода
+         */
+        int bufferedBytes() {
+            return generator.getOutputBuffered();
+        }
+
+        /**
+         * Освобождение источника товаров; при прерывании записи закрывается и поток вывода,
+         * чтобы освободить ресурсы сжатия
+         */
+        @Override
+        public void close() {
+            if (products != null) {
+                products.close();
+            }
+            if (!done) {
+                done = true;
+                try {
+                    generator.close();
+                    out.close();
+                } catch (IOException e) {
+                    // Запись прервана, результат не нужен
+                }
+            }
+        }
+    }
+
+    /**
+     * Курсор товаров документа, записывающий их в JSON по одному
+     */
+    private interface ProductCursor extends Closeable {
+        /**
+         * Запись следующего товара
+         * @return false, если товары закончились
+         */
+        boolean writeNext(JsonGenerator generator) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Курсор товаров поверх потока объектов Product
+     */
+    private static class StreamProductCursor implements ProductCursor {
+        private final Stream<Product> stream;
+        private final Iterator<Product> iterator;
+
+        StreamProductCursor(Stream<Product> stream) {
+            this.stream = stream;
+            this.iterator = stream.iterator();
+        }
+
+        @Override
+        public boolean writeNext(JsonGenerator generator) throws IOException {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            DocumentJson.writeProduct(generator, iterator.next());
+            return true;
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+
+    /**
+     * Ручная сериализация документа и товаров без обращения к метаданным бинов.
+     * Имена полей заранее закодированы в SerializedString, порядок и пропуск
+     * null-полей совпадают с сериализацией ObjectMapper'ом по умолчанию.
+     */
+    private static class DocumentJson {
+        private static final SerializedString DESCRIPTION = new SerializedString("description");
+        private static final SerializedString DOC_ID = new SerializedString("docId");
+        private static final SerializedString DOC_STATUS = new SerializedString("docStatus");
+        private static final SerializedString DOC_TYPE = new SerializedString("docType");
+        private static final SerializedString IMPORT_REQUEST = new SerializedString("importRequest");
+        private static final SerializedString OWNER_INN = new SerializedString("ownerInn");
+        private static final SerializedString PARTICIPANT_INN = new SerializedString("participantInn");
+        private static final SerializedString PRODUCER_INN = new SerializedString("producerInn");
+        private static final SerializedString PRODUCTION_DATE = new SerializedString("productionDate");
+        private static final SerializedString PRODUCTION_TYPE = new SerializedString("productionType");
+        private static final SerializedString PRODUCTS = new SerializedString("products");
+        private static final SerializedString REG_DATE = new SerializedString("regDate");
+        private static final SerializedString REG_NUMBER = new SerializedString("regNumber");
+        private static final SerializedString CERTIFICATE_DOCUMENT = new SerializedString("certificateDocument");
+        private static final SerializedString CERTIFICATE_DOCUMENT_DATE = new SerializedString("certificateDocumentDate");
+        private static final SerializedString CERTIFICATE_DOCUMENT_NUMBER = new SerializedString("certificateDocumentNumber");
+        private static final SerializedString TNVED_CODE = new SerializedString("tnvedCode");
+        private static final SerializedString UIT_CODE = new SerializedString("uitCode");
+        private static final SerializedString UITU_CODE = new SerializedString("uituCode");
+
+        private DocumentJson() {}
+
+        static void writeDocument(JsonGenerator generator, Document document) throws IOException {
+            ProductCursor products = document.openProductCursor();
+            try {
+                writeHeader(generator, document, products != null);
+                if (products != null) {
+                    while (products.writeNext(generator)) {
+                        // Товары пишутся курсором
+                    }
+                }
+                writeFooter(generator, document, products != null);
+            } finally {
+                if (products != null) {
+                    products.close();
+                }
+            }
+        }
+
+        static void writeHeader(JsonGenerator generator, Document document, boolean withProducts) throws IOException {
+            generator.writeStartObject();
+            Description description = document.getDescription();
+            if (description != null) {
+                generator.writeFieldName(DESCRIPTION);
+                generator.writeStartObject();
+                writeField(generator, PARTICIPANT_INN, description.getParticipantInn());
+                generator.writeEndObject();
+            }
+            writeField(generator, DOC_ID, document.getDocId());
+            writeField(generator, DOC_STATUS, document.getDocStatus());
+            writeField(generator, DOC_TYPE, document.getDocType());
+            generator.writeFieldName(IMPORT_REQUEST);
+            generator.writeBoolean(document.isImportRequest());
+            writeField(generator, OWNER_INN, document.getOwnerInn());
+            writeField(generator, PARTICIPANT_INN, document.getParticipantInn());
+            writeField(generator, PRODUCER_INN, document.getProducerInn());
+            writeField(generator, PRODUCTION_DATE, document.getProductionDate());
+            writeField(generator, PRODUCTION_TYPE, document.getProductionType());
+            if (withProducts) {
+                generator.writeFieldName(PRODUCTS);
+                generator.writeStartArray();
+            }
+        }
+
+        static void writeProduct(JsonGenerator generator, Product product) throws IOException {
+            if (product == null) {
+                generator.writeNull();
+                return;
+            }
+            generator.writeStartObject();
+            writeField(generator, CERTIFICATE_DOCUMENT, product.getCertificateDocument());
+            writeField(generator, CERTIFICATE_DOCUMENT_DATE, product.getCertificateDocumentDate());
+            writeField(generator, CERTIFICATE_DOCUMENT_NUMBER, product.getCertificateDocumentNumber());
+            writeField(generator, OWNER_INN, product.getOwnerInn());
+            writeField(generator, PRODUCER_INN, product.getProducerInn());
+            writeField(generator, PRODUCTION_DATE, product.getProductionDate());
+            writeField(generator, TNVED_CODE, product.getTnvedCode());
+            writeField(generator, UIT_CODE, product.getUitCode());
+            writeField(generator, UITU_CODE, product.getUituCode());
+            generator.writeEndObject();
+        }
+
+        /**
+         * Запись товара из колоночного хранения: коды пишутся прямо из UTF-8 байт
+         */
+        static void writeProduct(JsonGenerator generator, String[] shared, byte[] codeData,
+                                 int uitStart, int uitEnd, int uituEnd) throws IOException {
+            generator.writeStartObject();
+            writeField(generator, CERTIFICATE_DOCUMENT, shared[0]);
+            writeField(generator, CERTIFICATE_DOCUMENT_DATE, shared[1]);
+            writeField(generator, CERTIFICATE_DOCUMENT_NUMBER, shared[2]);
+            writeField(generator, OWNER_INN, shared[3]);
+            writeField(generator, PRODUCER_INN, shared[4]);
+            writeField(generator, PRODUCTION_DATE, shared[5]);
+            writeField(generator, TNVED_CODE, shared[6]);
+            int uituStart = uitEnd < 0 ? ~uitEnd : uitEnd;
+            if (uitEnd >= 0) {
+                generator.writeFieldName(UIT_CODE);
+                writeCode(generator, codeData, uitStart, uitEnd - uitStart);
+            }
+            if (uituEnd >= 0) {
+                generator.writeFieldName(UITU_CODE);
+                writeCode(generator, codeData, uituStart, uituEnd - uituStart);
+            }
+            generator.writeEndObject();
+        }
+
+        /**
+         * writeUTF8String поддерживают только генераторы с байтовым выводом; при записи в строку,
+         * Writer или TokenBuffer код сначала декодируется
+         */
+        private static void writeCode(JsonGenerator generator, byte[] codeData, int offset, int length)
+                throws IOException {
+            if (generator instanceof UTF8JsonGenerator) {
+                generator.writeUTF8String(codeData, offset, length);
+            } else {
+                generator.writeString(new String(codeData, offset, length, StandardCharsets.UTF_8));
+            }
+        }
+
+        static void writeFooter(JsonGenerator generator, Document document, boolean withProducts) throws IOException {
+            if (withProducts) {
+                generator.writeEndArray();
+            }
+            writeField(generator, REG_DATE, document.getRegDate());
+            writeField(generator, REG_NUMBER, document.getRegNumber());
+            generator.writeEndObject();
+        }
+
+        private static void writeField(JsonGenerator generator, SerializedString name, String value) throws IOException {
+            if (value != null) {
+                generator.writeFieldName(name);
+                generator.writeString(value);
+            }
+        }
+    }
+
+    /**
+     * Сериализатор документа для ObjectMapper'а на основе ручной сериализации
+     */
+    private static class DocumentSerializer extends StdSerializer<Document> {
+        private static final long serialVersionUID = 1L;
+
+        DocumentSerializer() {
+            super(Document.class);
+        }
+
+        @Override
+        public void serialize(Document document, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            DocumentJson.writeDocument(generator, document);
+        }
+    }
+
+    /**
+     * Сериализатор товара для ObjectMapper'а на основе ручной сериализации
+     */
+    private static class ProductSerializer extends StdSerializer<Product> {
+        private static final long serialVersionUID = 1L;
+
+        ProductSerializer() {
+            super(Product.class);
+        }
+
+        @Override
+        public void serialize(Product product, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            DocumentJson.writeProduct(generator, product);
+        }
+    }
+
+    /**
+     * Ограниченный потокобезопасный словарь-приспособленец для часто повторяющихся значений
+     * (ИНН, код ТН ВЭД, реквизиты сертификатов). Повторяющиеся значения документов и товаров,
+     * созданных в коде или разобранных из ответов, ссылаются на один экземпляр строки.
+     * После заполнения словаря новое значение вытесняет давно не использованное (алгоритм часов):
+     * значения, к которым обращались с прошлого обхода, получают второй шанс, а разовые
+     * значения вытесняются первыми. Поиск имеющегося значения не берёт блокировку.
+     */
+    public static class ValueDictionary {
+        private static final ValueDictionary SHARED = new ValueDictionary(65_536);
+
+        private final int maxSize;
+        private final ConcurrentHashMap<String, Entry> values;
+        private final ReentrantLock lock;
+        private final LongAdder hits;
+        private final LongAdder misses;
+        private Entry[] clock;
+        private int filled;
+        private int hand;
+
+        public ValueDictionary(int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize должен быть положительным числом");
+            }
+            this.maxSize = maxSize;
+            this.values = new ConcurrentHashMap<>();
+            this.lock = new ReentrantLock();
+            this.hits = new LongAdder();
+            this.misses = new LongAdder();
+            this.clock = new Entry[Math.min(maxSize, 1024)];
+        }
+
+        /**
+         * Общий словарь, используемый моделями документа и товара
+         */
+        public static ValueDictionary shared() {
+            return SHARED;
+        }
+
+        /**
+         * Получение единого экземпляра значения
+         */
+        public String intern(String value) {
+            if (value == null) {
+                return null;
+            }
+            Entry entry = values.get(value);
+            if (entry != null) {
+                hits.increment();
+                if (!entry.referenced) {
+                    entry.referenced = true;
+                }
+                return entry.value;
+            }
+            misses.increment();
+            lock.lock();
+            try {
+                entry = values.get(value);
+                if (entry != null) {
+                    return entry.value;
+                }
+                entry = new Entry(value);
+                if (filled < maxSize) {
+                    if (filled == clock.length) {
+                        clock = Arrays.copyOf(clock, Math.min(maxSize, 2 * clock.length));
+                    }
+                    clock[filled++] = entry;
+                } else {
+                    while (clock[hand].referenced) {
+                        clock[hand].referenced = false;
+                        hand = hand + 1 == maxSize ? 0 : hand + 1;
+                    }
+                    values.remove(clock[hand].value);
+                    clock[hand] = entry;
+                    hand = hand + 1 == maxSize ? 0 : hand + 1;
+                }
+                values.put(value, entry);
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Количество значений в словаре */
+        public int size() {
+            return values.size();
+        }
+
+        public long getHits() { return hits.sum(); }
+        public long getMisses() { return misses.sum(); }
+
+        /** Доля обращений, вернувших уже имеющийся экземпляр */
+        public double getHitRate() {
+            long h = hits.sum();
+            long total = h + misses.sum();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        private static class Entry {
+            private final String value;
+            private volatile boolean referenced;
+
+            Entry(String value) {
+                this.value = value;
+            }
+        }
+    }
+
+    private static String intern(String value) {
+        return ValueDictionary.shared().intern(value);
+    }
+
+    /**
+     * Подписчик тела ответа, распаковывающий gzip или deflate по мере поступления блоков
+     * и передающий распакованные данные исходному подписчику. Для gzip сверяются
+     * контрольная сумма CRC32 и длина распакованных данных из окончания потока.
+     */
+    private static class InflatingBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private static final int GZIP_MAGIC = 0x8b1f;
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final HttpResponse.BodySubscriber<T> downstream;
+        private final Inflater inflater;
+        private final byte[] output;
+        private final CRC32 crc;
+        private final byte[] trailer;
+        private int trailerLength;
+        private ByteArrayOutputStream gzipHeader;
+        private Flow.Subscription subscription;
+        private boolean received;
+        private boolean done;
+
+        InflatingBodySubscriber(HttpResponse.BodySubscriber<T> downstream, boolean gzip) {
+            this.downstream = downstream;
+            this.inflater = new Inflater(gzip);
+            this.output = new byte[8192];
+            this.crc = gzip ? new CRC32() : null;
+            this.trailer = gzip ? new byte[8] : null;
+            this.gzipHeader = gzip ? new ByteArrayOutputStream() : null;
+        }
+
+        /**
+         * Обработчик ответа, распаковывающий тело по заголовку Content-Encoding
+         */
+        static <T> HttpResponse.BodyHandler<T> decoding(HttpResponse.BodyHandler<T> handler) {
+            return responseInfo -> {
+                String encoding = responseInfo.headers().firstValue("Content-Encoding").orElse("").trim();
+                HttpResponse.BodySubscriber<T> subscriber = handler.apply(responseInfo);
+                if (encoding.equalsIgnoreCase("gzip")) {
+                    return new InflatingBodySubscriber<>(subscriber, true);
+                }
+                if (encoding.equalsIgnoreCase("deflate")) {
+                    return new InflatingBodySubscriber<>(subscriber, false);
+                }
+                return subscriber;
+            };
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return downstream.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            downstream.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (done) {
+                return;
+            }
+            List<ByteBuffer> inflated = new ArrayList<>();
+            try {
+                for (ByteBuffer item : items) {
+                    received |= item.hasRemaining();
+                    if (gzipHeader != null) {
+                        item = skipGzipHeader(item);
+                    }
+                    if (item.hasRemaining() && !inflater.finished()) {
+                        inflater.setInput(item);
+                        int n;
+                        while ((n = inflater.inflate(output)) > 0) {
+                            if (crc != null) {
+                                crc.update(output, 0, n);
+                            }
+                            inflated.add(ByteBuffer.wrap(Arrays.copyOf(output, n)));
+                        }
+                    }
+                    if (trailer != null && inflater.finished()) {
+                        // Непрочитанный инфлятером остаток блока - окончание gzip
+                        int length = Math.min(item.remaining(), trailer.length - trailerLength);
+                        item.get(trailer, trailerLength, length);
+                        trailerLength += length;
+                    }
+                }
+            } catch (DataFormatException | IOException e) {
+                // Дальнейшие блоки не нужны: поток отменяется, а поздние сигналы игнорируются
+                subscription.cancel();
+                fail(new IOException("Ошибка распаковки ответа", e));
+                return;
+            }
+            downstream.onNext(inflated);
+        }
+
+        /**
+         * Накопление и пропуск заголовка gzip, который может прийти в нескольких блоках
+         * @return остаток блока после заголовка
+         */
+        private ByteBuffer skipGzipHeader(ByteBuffer item) throws IOException {
+            int consumedBefore = gzipHeader.size();
+            byte[] bytes = new byte[item.remaining()];
+            item.get(bytes);
+            gzipHeader.write(bytes);
+            int length = gzipHeaderLength(gzipHeader.toByteArray());
+            if (length < 0) {
+                return ByteBuffer.allocate(0);
+            }
+            gzipHeader = null;
+            return ByteBuffer.wrap(bytes, length - consumedBefore, bytes.length - (length - consumedBefore));
+        }
+
+        /**
+         * @return длина заголовка gzip или -1, если он получен не полностью
+         */
+        private static int gzipHeaderLength(byte[] header) throws IOException {
+            if (header.length < 10) {
+                return -1;
+            }
+            if (((header[0] & 0xff) | ((header[1] & 0xff) << 8)) != GZIP_MAGIC || header[2] != 8) {
+                throw new IOException("Некорректный заголовок gzip");
+            }
+            int flags = header[3] & 0xff;
+            int position = 10;
+            if ((flags & FEXTRA) != 0) {
+                if (header.length < position + 2) {
+                    return -1;
+                }
+                position += 2 + ((header[position] & 0xff) | ((header[position + 1] & 0xff) << 8));
+            }
+            for (int flag : new int[] {FNAME, FCOMMENT}) {
+                if ((flags & flag) != 0) {
+                    while (position < header.length && header[position] != 0) {
+                        position++;
+                    }
+                    if (position >= header.length) {
+                        return -1;
+                    }
+                    position++;
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                position += 2;
+            }
+            return position <= header.length ? position : -1;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (!done) {
+                fail(throwable);
+            }
+        }
+
+        /**
+         * Пустое тело допустимо, а непустое должно содержать сжатый поток целиком
+         */
+        @Override
+        public void onComplete() {
+            if (done) {
+                return;
+            }
+            if (received && (!inflater.finished() || trailer != null && trailerLength < trailer.length)) {
+                fail(new IOException("Ответ оборван до конца сжатых данных"));
+                return;
+            }
+            if (received && trailer != null && (readInt(0) != (int) crc.getValue()
+                    || readInt(4) != (int) inflater.getBytesWritten())) {
+                fail(new IOException("Контрольная сумма сжатого ответа не совпадает"));
+                return;
+            }
+            done = true;
+            inflater.end();
+            downstream.onComplete();
+        }
+
+        private int readInt(int offset) {
+            return (trailer[offset] & 0xff) | (trailer[offset + 1] & 0xff) << 8
+                    | (trailer[offset + 2] & 0xff) << 16 | (trailer[offset + 3] & 0xff) << 24;
+        }
+
+        private void fail(Throwable throwable) {
+            done = true;
+            inflater.end();
+            downstream.onError(throwable);
+        }
+    }
+
+    /**
+     * Модель документа для ввода в оборот товара
+     */
+    public static class Document {
+        private Description description;
+        private String docId;
+        private String docStatus;
+        private String docType;
+        private boolean importRequest;
+        private String ownerInn;
+        private String participantInn;
+        private String producerInn;
+        private String productionDate;
+        private String productionType;
+        private Product[] products;
+        private String regDate;
+        private String regNumber;
+
+        // Конструкторы, геттеры и сеттеры
+        public Document() {}
+
+        public Document(Description description, String docId, String docStatus, String docType,
+                        boolean importRequest, String ownerInn, String participantInn,
+                        String producerInn, String productionDate, String productionType,
+                        Product[] products, String regDate, String regNumber) {
+            this.description = description;
+            this.docId = docId;
+            this.docStatus = docStatus;
+            this.docType = docType;
+            this.importRequest = importRequest;
+            this.ownerInn = intern(ownerInn);
+            this.participantInn = intern(participantInn);
+            this.producerInn = intern(producerInn);
+            this.productionDate = productionDate;
+            this.productionType = productionType;
+            this.products = products;
+            this.regDate = regDate;
+            this.regNumber = regNumber;
+        }
+
+        // Геттеры и сеттеры
+        public Description getDescription() { return description; }
+        public void setDescription(Description description) { this.description = description; }
+
+        public String getDocId() { return docId; }
+        public void setDocId(String docId) { this.docId = docId; }
+
+        public String getDocStatus() { return docStatus; }
+        public void setDocStatus(String docStatus) { this.docStatus = docStatus; }
+
+        public String getDocType() { return docType; }
+        public void setDocType(String docType) { this.docType = docType; }
+
+        public boolean isImportRequest() { return importRequest; }
+        public void setImportRequest(boolean importRequest) { this.importRequest = importRequest; }
+
+        public String getOwnerInn() { return ownerInn; }
+        public void setOwnerInn(String ownerInn) { this.ownerInn = intern(ownerInn); }
+
+        public String getParticipantInn() { return participantInn; }
+        public void setParticipantInn(String participantInn) { this.participantInn = intern(participantInn); }
+
+        public String getProducerInn() { return producerInn; }
+        public void setProducerInn(String producerInn) { this.producerInn = intern(producerInn); }
+
+        public String getProductionDate() { return productionDate; }
+        public void setProductionDate(String productionDate) { this.productionDate = productionDate; }public String getProductionType() { return productionType; }
+        public void setProductionType(String productionType) { this.productionType = productionType; }
+
+        public Product[] getProducts() { return products; }
+        public void setProducts(Product[] products) { this.products = products; }
+
+        public String getRegDate() { return regDate; }
+        public void setRegDate(String regDate) { this.regDate = regDate; }
+
+        public String getRegNumber() { return regNumber; }
+        public void setRegNumber(String regNumber) { this.regNumber = regNumber; }
+
+        /**
+         * Открытие товаров документа для сериализации
+         * @return поток товаров или null, если поле products отсутствует
+         */
+        Stream<Product> openProducts() {
+            return products == null ? null : Arrays.stream(products);
+        }
+
+        /**
+         * Открытие курсора товаров для сериализации
+         * @return курсор или null, если поле products отсутствует
+         */
+        ProductCursor openProductCursor() {
+            Stream<Product> stream = openProducts();
+            return stream == null ? null : new StreamProductCursor(stream);
+        }
+
+        /**
+         * Количество товаров документа для расчёта его стоимости
+         */
+        long productCount() {
+            return products == null ? 0 : products.length;
+        }
+    }
+
+    /**
+     * Документ, товары которого не хранятся в памяти, а читаются из источника
+     * во время сериализации тела запроса. Позволяет отправлять документы с сотнями
+     * тысяч кодов, например построчно из файла, при постоянном расходе памяти.
+     * Источник открывается заново при каждой сериализации и закрывается по её окончании.
+     */
+    public static class StreamingDocument extends Document {
+        private final Supplier<? extends Stream<Product>> productSource;
+        private final long productCountHint;
+
+        /**
+         * @param productSource источник потока товаров
+         */
+        public StreamingDocument(Supplier<? extends Stream<Product>> productSource) {
+            this(productSource, 0);
+        }
+
+        /**
+         * @param productSource источник потока товаров
+         * @param productCountHint ожидаемое количество товаров для расчёта стоимости документа
+         */
+        public StreamingDocument(Supplier<? extends Stream<Product>> productSource, long productCountHint) {
+            this.productSource = productSource;
+            this.productCountHint = productCountHint;
+        }
+
+        @Override
+        Stream<Product> openProducts() {
+            return productSource.get();
+        }
+
+        @Override
+        long productCount() {
+            return productCountHint;
+        }
+    }
+
+    /**
+     * Документ, товары которого хранятся в компактном колоночном виде
+     */
+    public static class ColumnarDocument extends Document {
+        private final ProductColumns productColumns;
+
+        public ColumnarDocument(ProductColumns productColumns) {
+            this.productColumns = productColumns;
+        }
+
+        public ProductColumns getProductColumns() { return productColumns; }
+
+        @Override
+        Stream<Product> openProducts() {
+            return productColumns.stream();
+        }
+
+        @Override
+        ProductCursor openProductCursor() {
+            return productColumns.cursor();
+        }
+
+        @Override
+        long productCount() {
+            return productColumns.size();
+        }
+    }
+
+    /**
+     * Колоночное хранение списка товаров. Товары одного документа обычно совпадают
+     * во всех полях, кроме кодов, поэтому общие поля хранятся словарём уникальных
+     * сочетаний (на товар - номер сочетания), а коды uitCode/uituCode - подряд
+     * в одном массиве UTF-8 байт со смещениями. Сериализуется в тот же JSON, что и Product[],
+     * без создания объектов Product и строк кодов.
+     */
+    public static class ProductColumns {
+        private final String[][] templates;
+        private final int[] templateIds;
+        private final byte[] codeData;
+        private final int[] codeEnds;
+
+        private ProductColumns(String[][] templates, int[] templateIds, byte[] codeData, int[] codeEnds) {
+            this.templates = templates;
+            this.templateIds = templateIds;
+            this.codeData = codeData;
+            this.codeEnds = codeEnds;
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        /** Количество товаров */
+        public int size() {
+            return templateIds.length;
+        }
+
+        /**
+         * Получение товара по номеру; объект создаётся заново при каждом вызове
+         */
+        public Product get(int index) {
+            String[] shared = templates[templateIds[index]];
+            return new Product(shared[0], shared[1], shared[2], shared[3], shared[4], shared[5], shared[6],
+                    code(2 * index), code(2 * index + 1));
+        }
+
+        public Stream<Product> stream() {
+            return IntStream.range(0, size()).mapToObj(this::get);
+        }
+
+        private String code(int slot) {
+            int end = codeEnds[slot];
+            if (end < 0) {
+                return null;
+            }
+            int start = codeStart(slot);
+            return new String(codeData, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        private int codeStart(int slot) {
+            if (slot == 0) {
+                return 0;
+            }
+            int previousEnd = codeEnds[slot - 1];
+            return previousEnd < 0 ? ~previousEnd : previousEnd;
+        }
+
+        ProductCursor cursor() {
+            return new ProductCursor() {
+                private int next;
+
+                @Override
+                public boolean writeNext(JsonGenerator generator) throws IOException {
+                    if (next == size()) {
+                        return false;
+                    }
+                    String[] shared = templates[templateIds[next]];
+                    DocumentJson.writeProduct(generator, shared, codeData,
+                            codeStart(2 * next), codeEnds[2 * next], codeEnds[2 * next + 1]);
+                    next++;
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                    // Данные в памяти, освобождать нечего
+                }
+            };
+        }
+
+        /**
+         * Построитель колоночного списка товаров
+         */
+        public static class Builder {
+            private final Map<List<String>, Integer> templateIndex = new HashMap<>();
+            private final List<String[]> templates = new ArrayList<>();
+            private int[] templateIds = new int[16];
+            private byte[] codeData = new byte[256];
+            private int[] codeEnds = new int[32];
+            private int size;
+            private int codeLength;
+
+            private Builder() {}
+
+            public Builder add(Product product) {
+                return add(product.getCertificateDocument(), product.getCertificateDocumentDate(),
+                        product.getCertificateDocumentNumber(), product.getOwnerInn(), product.getProducerInn(),
+                        product.getProductionDate(), product.getTnvedCode(), product.getUitCode(), product.getUituCode());
+            }
+
+            public Builder add(String certificateDocument, String certificateDocumentDate,
+                               String certificateDocumentNumber, String ownerInn, String producerInn,
+                               String productionDate, String tnvedCode, String uitCode, String uituCode) {
+                String[] shared = {intern(certificateDocument), intern(certificateDocumentDate),
+                        intern(certificateDocumentNumber), intern(ownerInn), intern(producerInn),
+                        productionDate, intern(tnvedCode)};
+                Integer templateId = templateIndex.get(Arrays.asList(shared));
+                if (templateId == null) {
+                    templateId = templates.size();
+                    templates.add(shared);
+                    templateIndex.put(Arrays.asList(shared), templateId);
+                }
+                if (size == templateIds.length) {
+                    templateIds = Arrays.copyOf(templateIds, size * 2);
+                    codeEnds = Arrays.copyOf(codeEnds, size * 4);
+                }
+                templateIds[size] = templateId;
+                codeEnds[2 * size] = appendCode(uitCode);
+                codeEnds[2 * size + 1] = appendCode(uituCode);
+                size++;
+                return this;
+            }
+
+            /**
+             * Добавление кода в общий массив
+             * @return смещение конца кода, для null - дополнение смещения до отрицательного числа
+             */
+            private int appendCode(String code) {
+                if (code == null) {
+                    return ~codeLength;
+                }
+                byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+                if (codeLength + bytes.length > codeData.length) {
+                    codeData = Arrays.copyOf(codeData, Math.max(codeData.length * 2, codeLength + bytes.length));
+                }
+                System.arraycopy(bytes, 0, codeData, codeLength, bytes.length);
+                codeLength += bytes.length;
+                return codeLength;
+            }
+
+            public ProductColumns build() {
+                return new ProductColumns(templates.toArray(new String[0][]), Arrays.copyOf(templateIds, size),
+                        Arrays.copyOf(codeData, codeLength), Arrays.copyOf(codeEnds, 2 * size));
+            }
+        }
+    }
+
+    /**
+     * Описание документа
+     */
+    public static class Description {
+        private String participantInn;
+
+        public Description() {}
+        public Description(String participantInn) {
+            this.participantInn = intern(participantInn);
+        }
+
+        public String getParticipantInn() { return participantInn; }
+        public void setParticipantInn(String participantInn) { this.participantInn = intern(participantInn); }
+    }
+
+    /**
+     * Информация о продукте
+     */
+    public static class Product {
+        private String certificateDocument;
+        private String certificateDocumentDate;
+        private String certificateDocumentNumber;
+        private String ownerInn;
+        private String producerInn;
+        private String productionDate;
+        private String tnvedCode;
+        private String uitCode;
+        private String uituCode;
+
+        public Product() {}
+
+        public Product(String certificateDocument, String certificateDocumentDate,
+                       String certificateDocumentNumber, String ownerInn, String producerInn,
+                       String productionDate, String tnvedCode, String uitCode, String uituCode) {
+            this.certificateDocument = intern(certificateDocument);
+            this.certificateDocumentDate = intern(certificateDocumentDate);
+            this.certificateDocumentNumber = intern(certificateDocumentNumber);
+            this.ownerInn = intern(ownerInn);
+            this.producerInn = intern(producerInn);
+            this.productionDate = productionDate;
+            this.tnvedCode = intern(tnvedCode);
+            this.uitCode = uitCode;
+            this.uituCode = uituCode;
+        }
+
+        // Геттеры и сеттеры
+        public String getCertificateDocument() { return certificateDocument; }
+        public void setCertificateDocument(String certificateDocument) { this.certificateDocument = intern(certificateDocument); }
+
+        public String getCertificateDocumentDate() { return certificateDocumentDate; }
+        public void setCertificateDocumentDate(String certificateDocumentDate) { this.certificateDocumentDate = intern(certificateDocumentDate); }
+
+        public String getCertificateDocumentNumber() { return certificateDocumentNumber; }
+        public void setCertificateDocumentNumber(String certificateDocumentNumber) { this.certificateDocumentNumber = intern(certificateDocumentNumber); }
+
+        public String getOwnerInn() { return ownerInn; }
+        public void setOwnerInn(String ownerInn) { this.ownerInn = intern(ownerInn); }
+
+        public String getProducerInn() { return producerInn; }
+        public void setProducerInn(String producerInn) { this.producerInn = intern(producerInn); }
+
+        public String getProductionDate() { return productionDate; }
+        public void setProductionDate(String productionDate) { this.productionDate = productionDate; }
+
+        public String getTnvedCode() { return tnvedCode; }
+        public void setTnvedCode(String tnvedCode) { this.tnvedCode = intern(tnvedCode); }
+
+        public String getUitCode() { return uitCode; }
+        public void setUitCode(String uitCode) { this.uitCode = uitCode; }
+
+        public String getUituCode() { return uituCode; }
+        public void setUituCode(String uituCode) { this.uituCode = uituCode; }
+    }
+
+    /**
+     * Типизированный результат создания документа
+     */
+    public static class DocumentResult {
+        private final int statusCode;
+        private final String documentId;
+        private final String errorCode;
+        private final String errorMessage;
+        private final String rawBody;
+
+        public DocumentResult(int statusCode, String documentId, String errorCode, String errorMessage, String rawBody) {
+            this.statusCode = statusCode;
+            this.documentId = documentId;
+            this.errorCode = errorCode;
+            this.errorMessage = errorMessage;
+            this.rawBody = rawBody;
+        }
+
+        public int getStatusCode() { return statusCode; }
+        /** Идентификатор (UUID) созданного документа */
+        public String getDocumentId() { return documentId; }
+        public String getErrorCode() { return errorCode; }
+        public String getErrorMessage() { return errorMessage; }
+        /** Исходное тело ответа, если его сохранение включено; тело ошибки усечено до заданного размера */
+        public String getRawBody() { return rawBody; }
+
+        public boolean isSuccess() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+    }
+
+    /**
+     * Результат выполнения API запроса
+     */
+    public static class ApiResponse {
+        private final int statusCode;private final String body;
+
+        public ApiResponse(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() { return statusCode; }
+        public String getBody() { return body; }
+
+        public boolean isSuccess() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+    }
 }
\ No newline at end of file